@@ -15,17 +15,21 @@
  */
 
 #include <errno.h>
+#include <fcntl.h>
 #include <stdio.h>
 #include <signal.h>
 #include <unistd.h>
 #include <sys/shm.h>
 #include <stdlib.h>
 #include <stdbool.h>
+#include <stdint.h>
 #include <string.h>
 #include <sys/wait.h>
 
 #include <javafl_JavaAfl.h>
 
+#include "JavaAflMap.h"
+
 // Use afl's config.h for constants.
 #ifdef HAVE_AFL_CONFIG_H
 
@@ -33,12 +37,6 @@
 
 #else // #ifndef HAVE_AFL_CONFIG_H
 
-#ifdef HAVE_AFL_MAP_SIZE_H
-
-#include <afl-map-size.h>
-
-#endif // #ifdef HAVE_AFL_MAP_SIZE_H
-
 // These constants must be kept in sync with afl-fuzz:
 #ifndef MAP_SIZE
 
@@ -54,12 +52,50 @@ static const int FORKSRV_FD = 198;
 
 #endif // #ifndef HAVE_AFL_CONFIG_H
 
+// MAP_SIZE is only the default. The map size is decided at run time,
+// as the probes mask their tuple indexes with it.
+static const char MAP_SIZE_ENV_VAR[] = "JAVA_AFL_MAP_SIZE";
+static const char AFL_MAP_SIZE_ENV_VAR[] = "AFL_MAP_SIZE";
+// The smallest map has one line of JavaAfl.dirty and the largest one
+// is the largest one that afl++ fork server options can tell. These
+// are also in JavaAfl.java.
+static const size_t MIN_MAP_SIZE = 64;
+static const size_t MAX_MAP_SIZE = 1 << 23;
+
+// afl++ fork server options that the hello message can have.
+static const uint32_t FS_OPT_ENABLED = 0x80000001;
+static const uint32_t FS_OPT_MAPSIZE = 0x40000000;
+static const uint32_t FS_OPT_SHDMEM_FUZZ = 0x01000000;
+
+// afl++ passes test cases in this shared memory when the fork server
+// asks for it. It starts with the length of the test case.
+static const char SHM_FUZZ_ENV_VAR[] = "__AFL_SHM_FUZZ_ID";
+
+// afl++ CmpLog runs the program with comparison log shared memory.
+static const char CMPLOG_SHM_ENV_VAR[] = "__AFL_CMPLOG_SHM_ID";
+
+// Non-forking persistent mode. The JVM that afl-fuzz starts runs the
+// fork server and starts a new JVM for the actual fuzzing. That JVM
+// reads a go signal for each execution from NO_FORK_FD and writes
+// back to NO_FORK_FD + 1 when it's done.
+static const char NO_FORK_ENV_VAR[] = "JAVA_AFL_NO_FORK";
+static const char NO_FORK_CHILD_ENV_VAR[] = "__JAVA_AFL_NO_FORK_CHILD";
+static const int NO_FORK_FD = 196;
+
 // These are global helper variables to avoid discovering the same
 // information again and again.
 static void* g_afl_area = (void*)-1;
 static void* g_zero_area = NULL;
+// Shared memory that is attached before initialization for the
+// direct map.
+static void* g_direct_area = (void*)-1;
+static size_t g_map_size = 0;
+static void* g_input_area = (void*)-1;
+static size_t g_input_area_size = 0;
 static jfieldID g_map_field_id = NULL;
+static jint g_start_location = 0;
 static bool g_is_persistent = false;
+static bool g_is_no_fork_child = false;
 static bool g_initialized = false;
 
 static void init_map_field(JNIEnv *env, jclass cls)
@@ -83,14 +119,498 @@ static jobject get_map_field(JNIEnv *env, jclass cls)
     return (*env)->GetStaticObjectField(env, cls, g_map_field_id);
 }
 
+static jbyteArray get_dirty_field(JNIEnv *env, jclass cls)
+{
+    jfieldID field_id = (*env)->GetStaticFieldID(env, cls, "dirty", "[B");
+    return (*env)->GetStaticObjectField(env, cls, field_id);
+}
+
+static bool get_boolean_field(JNIEnv *env, jclass cls, const char* name)
+{
+    jfieldID field_id = (*env)->GetStaticFieldID(env, cls, name, "Z");
+    return (*env)->GetStaticBooleanField(env, cls, field_id);
+}
+
+/**
+ * Copies or merges the lines of the map that probes have marked
+ * dirty to the target, or only zeroes them if target is NULL.
+ * Returns false without doing anything if something may have written
+ * to the map without marking the line, or if there are no marks. The
+ * whole map then needs to be handled.
+ */
+static bool transfer_dirty_map(
+    JNIEnv *env, jclass cls, unsigned char* target, bool merge)
+{
+    if (!get_boolean_field(env, cls, "_map_writes_marked")) {
+        return false;
+    }
+    jbyteArray dirty_field = get_dirty_field(env, cls);
+    size_t lines = (*env)->GetArrayLength(env, dirty_field);
+    unsigned char* dirty = (*env)->GetPrimitiveArrayCritical(
+        env, dirty_field, NULL);
+    if (!has_dirty_lines(dirty, lines)) {
+        (*env)->ReleasePrimitiveArrayCritical(env, dirty_field, dirty, 0);
+        return false;
+    }
+    jobject map_field = get_map_field(env, cls);
+    unsigned char* map = (*env)->GetPrimitiveArrayCritical(
+        env, map_field, NULL);
+    size_t line_size = g_map_size / lines;
+    // The start location is not marked by probes.
+    dirty[g_start_location / line_size] = 1;
+    transfer_dirty_lines(target, map, dirty, lines, line_size, merge);
+    map[g_start_location] = 1;
+    (*env)->ReleasePrimitiveArrayCritical(env, map_field, map, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, dirty_field, dirty, 0);
+    return true;
+}
+
+static size_t parse_map_size(const char* value)
+{
+    if (value == NULL) {
+        return 0;
+    }
+    return strtoul(value, NULL, 0);
+}
+
+/**
+ * Returns the size of the afl shared memory, or 0 if there is none.
+ */
+static size_t get_shared_map_size(void)
+{
+    const char* afl_shm_id = getenv(SHM_ENV_VAR);
+    if (afl_shm_id == NULL) {
+        return 0;
+    }
+    struct shmid_ds info;
+    if (shmctl(atoi(afl_shm_id), IPC_STAT, &info) == -1) {
+        return 0;
+    }
+    return info.shm_segsz;
+}
+
 JNIEXPORT jint JNICALL Java_javafl_JavaAfl__1get_1map_1size
+  (JNIEnv * env, jclass cls, jint recorded_size)
+{
+    size_t shared_size = get_shared_map_size();
+    // An explicit size comes first. Otherwise the map is as large as
+    // the instrumented classes need, but not smaller than what the
+    // fuzzer asks for or uses.
+    size_t requested = parse_map_size(getenv(MAP_SIZE_ENV_VAR));
+    if (requested == 0) {
+        size_t afl_size = parse_map_size(getenv(AFL_MAP_SIZE_ENV_VAR));
+        requested = recorded_size;
+        if (requested < afl_size) {
+            requested = afl_size;
+        }
+        if (requested < shared_size) {
+            requested = shared_size;
+        }
+    }
+    if (requested == 0) {
+        requested = MAP_SIZE;
+    }
+    size_t map_size = MIN_MAP_SIZE;
+    while (map_size < requested && map_size < MAX_MAP_SIZE) {
+        map_size <<= 1;
+    }
+    // Probes must not write past the end of the shared memory.
+    while (shared_size != 0
+           && map_size > shared_size
+           && map_size > MIN_MAP_SIZE) {
+        map_size >>= 1;
+    }
+    g_map_size = map_size;
+    return map_size;
+}
+
+JNIEXPORT void JNICALL Java_javafl_JavaAfl__1merge_1map
+  (JNIEnv * env, jclass cls, jbyteArray target, jbyteArray source)
+{
+    jsize length = (*env)->GetArrayLength(env, source);
+    if ((*env)->GetArrayLength(env, target) < length) {
+        length = (*env)->GetArrayLength(env, target);
+    }
+    unsigned char* target_data = (*env)->GetPrimitiveArrayCritical(
+        env, target, NULL);
+    unsigned char* source_data = (*env)->GetPrimitiveArrayCritical(
+        env, source, NULL);
+    // The source is the map of a thread that may still be running.
+    merge_map_atomically(target_data, source_data, length);
+    (*env)->ReleasePrimitiveArrayCritical(env, source, source_data, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, target, target_data, 0);
+}
+
+JNIEXPORT jint JNICALL Java_javafl_JavaAfl__1count_1map_1entries
+  (JNIEnv * env, jclass cls, jbyteArray map)
+{
+    jsize length = (*env)->GetArrayLength(env, map);
+    unsigned char* data = (*env)->GetPrimitiveArrayCritical(env, map, NULL);
+    jint entries = 0;
+    for (jsize i = 0; i < length; i++) {
+        entries += data[i] != 0;
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, map, data, JNI_ABORT);
+    return entries;
+}
+
+// Fields of the JAVA_AFL_STATS file of javafl.Telemetry.
+enum {
+    STATS_EXECUTIONS = 2,
+    STATS_EXECUTION_NANOS = 4,
+    STATS_MAX_NANOS = 5,
+    STATS_LAST_NANOS = 6,
+    STATS_SAMPLED_NANOS = 14,
+    STATS_HISTOGRAM = 16,
+};
+static const jlong STATS_SAMPLE_INTERVAL_NANOS = 1000000000;
+
+JNIEXPORT jlong JNICALL Java_javafl_JavaAfl__1get_1buffer_1address
+  (JNIEnv * env, jclass cls, jobject buffer)
+{
+    return (jlong)(intptr_t)(*env)->GetDirectBufferAddress(env, buffer);
+}
+
+JNIEXPORT jboolean JNICALL Java_javafl_JavaAfl__1count_1execution
+  (JNIEnv * env, jclass cls, jlong address, jlong nanos, jlong now)
+{
+    jlong* stats = (jlong*)(intptr_t)address;
+    stats[STATS_EXECUTIONS]++;
+    stats[STATS_EXECUTION_NANOS] += nanos;
+    stats[STATS_LAST_NANOS] = nanos;
+    if (nanos > stats[STATS_MAX_NANOS]) {
+        stats[STATS_MAX_NANOS] = nanos;
+    }
+    int bucket = 0;
+    for (jlong rest = nanos >> 1; rest > 0; rest >>= 1) {
+        bucket++;
+    }
+    stats[STATS_HISTOGRAM + bucket]++;
+    // The time of the last sample is in the file, as forked children
+    // would otherwise all take their first one.
+    jlong sampled = stats[STATS_SAMPLED_NANOS];
+    if (now - sampled >= STATS_SAMPLE_INTERVAL_NANOS || now < sampled) {
+        stats[STATS_SAMPLED_NANOS] = now;
+        return JNI_TRUE;
+    }
+    return JNI_FALSE;
+}
+
+JNIEXPORT jlong JNICALL Java_javafl_JavaAfl__1get_1direct_1map
+  (JNIEnv * env, jclass cls)
+{
+    // The shared memory is the same for all processes that the fork
+    // server creates, so it can be attached already here and
+    // inherited by them.
+    const char* afl_shm_id = getenv(SHM_ENV_VAR);
+    if (afl_shm_id == NULL) {
+        return 0;
+    }
+    g_direct_area = shmat(atoi(afl_shm_id), NULL, 0);
+    if (g_direct_area == (void*)-1) {
+        return 0;
+    }
+    return (jlong)(intptr_t)g_direct_area;
+}
+
+JNIEXPORT jlong JNICALL Java_javafl_JavaAfl__1get_1cmp_1map
   (JNIEnv * env, jclass cls)
 {
-    return MAP_SIZE;
+    // Only the CmpLog fork server of afl++ gets this. Its children
+    // inherit the attachment like they do for the direct map.
+    const char* cmplog_shm_id = getenv(CMPLOG_SHM_ENV_VAR);
+    if (cmplog_shm_id == NULL) {
+        return 0;
+    }
+    void* cmp_area = shmat(atoi(cmplog_shm_id), NULL, 0);
+    if (cmp_area == (void*)-1) {
+        perror("Failed to attach CmpLog shared memory");
+        return 0;
+    }
+    return (jlong)(intptr_t)cmp_area;
+}
+
+/**
+ * Reads the command line of this process so that the same program can
+ * be started again. Returns NULL if that is not possible.
+ */
+static char** read_command_line(void)
+{
+    FILE* cmdline = fopen("/proc/self/cmdline", "rb");
+    if (cmdline == NULL) {
+        return NULL;
+    }
+    size_t size = 0;
+    size_t capacity = 4096;
+    char* data = malloc(capacity);
+    size_t chunk;
+    while ((chunk = fread(data + size, 1, capacity - size, cmdline)) > 0) {
+        size += chunk;
+        if (size == capacity) {
+            capacity *= 2;
+            data = realloc(data, capacity);
+        }
+    }
+    fclose(cmdline);
+    if (size == 0) {
+        free(data);
+        return NULL;
+    }
+    size_t count = 0;
+    for (size_t i = 0; i < size; i++) {
+        if (data[i] == '\0') {
+            count++;
+        }
+    }
+    char** argv = calloc(count + 1, sizeof(char*));
+    char* arg = data;
+    for (size_t i = 0; i < count; i++) {
+        argv[i] = arg;
+        arg += strlen(arg) + 1;
+    }
+    return argv;
+}
+
+/**
+ * Copies the current environment with the variable that tells the
+ * started JVM that it's the fuzzing one.
+ */
+static char** no_fork_child_environment(void)
+{
+    extern char** environ;
+    size_t count = 0;
+    while (environ[count] != NULL) {
+        count++;
+    }
+    char** envp = calloc(count + 2, sizeof(char*));
+    memcpy(envp, environ, count * sizeof(char*));
+    static char marker[sizeof(NO_FORK_CHILD_ENV_VAR) + 2];
+    snprintf(marker, sizeof(marker), "%s=1", NO_FORK_CHILD_ENV_VAR);
+    envp[count] = marker;
+    return envp;
+}
+
+// A fuzzed JVM of the non-forking persistent mode.
+struct no_fork_child
+{
+    pid_t pid;
+    // The fork server tells to start an execution through this.
+    int go_fd;
+    // The JVM tells through this that it is ready for the first
+    // execution and that an execution is done.
+    int done_fd;
+    bool is_ready;
+    // Wait status of a JVM that exited before it was ready.
+    bool has_exited;
+    int exit_status;
+};
+
+static void start_no_fork_child(
+    char** argv, char** envp, struct no_fork_child* child)
+{
+    int go_pipe[2];
+    int done_pipe[2];
+    if (pipe(go_pipe) == -1 || pipe(done_pipe) == -1) {
+        perror("Failed to create pipes for the fuzzed JVM");
+        abort();
+    }
+    pid_t child_pid = fork();
+    if (child_pid == -1) {
+        perror("Failed to start the fuzzed JVM");
+        abort();
+    }
+    if (!child_pid) {
+        // Only async-signal-safe calls are allowed here, as this is
+        // a copy of a multi-threaded process.
+        dup2(go_pipe[0], NO_FORK_FD);
+        dup2(done_pipe[1], NO_FORK_FD + 1);
+        int fds[] = {go_pipe[0], go_pipe[1], done_pipe[0], done_pipe[1]};
+        for (size_t i = 0; i < sizeof(fds) / sizeof(*fds); i++) {
+            if (fds[i] != NO_FORK_FD && fds[i] != NO_FORK_FD + 1) {
+                close(fds[i]);
+            }
+        }
+        close(FORKSRV_FD);
+        close(FORKSRV_FD + 1);
+        execve("/proc/self/exe", argv, envp);
+        _exit(127);
+    }
+    close(go_pipe[0]);
+    close(done_pipe[1]);
+    child->pid = child_pid;
+    child->go_fd = go_pipe[1];
+    child->done_fd = done_pipe[0];
+    child->is_ready = false;
+    child->has_exited = false;
+}
+
+/**
+ * Waits until the JVM has started up. Returns false if it exited
+ * before that, and then wstatus has its wait status.
+ */
+static bool wait_for_no_fork_child(struct no_fork_child* child, int* wstatus)
+{
+    uint32_t ready;
+    if (child->is_ready) {
+        return true;
+    }
+    if (!child->has_exited && read(child->done_fd, &ready, 4) == 4) {
+        child->is_ready = true;
+        return true;
+    }
+    if (!child->has_exited) {
+        waitpid(child->pid, &child->exit_status, 0);
+        child->has_exited = true;
+    }
+    *wstatus = child->exit_status;
+    return false;
+}
+
+static void close_no_fork_child(struct no_fork_child* child)
+{
+    close(child->go_fd);
+    close(child->done_fd);
+    child->pid = -1;
+}
+
+/**
+ * Replaces a JVM that has exited with the spare one and starts a new
+ * spare JVM.
+ */
+static void replace_no_fork_child(
+    char** argv,
+    char** envp,
+    struct no_fork_child* current,
+    struct no_fork_child* spare)
+{
+    *current = *spare;
+    start_no_fork_child(argv, envp, spare);
+}
+
+/**
+ * Fork server for the non-forking persistent mode. afl-fuzz sees the
+ * fuzzed JVM as a persistent mode child process that stops after
+ * each execution. When it crashes, times out or exits, a spare JVM
+ * that has already started up takes its place and another spare one
+ * starts. The start-up of a JVM then doesn't count against the time
+ * that afl-fuzz gives to an execution. The first JVMs start before
+ * the fork server says hello, as afl-fuzz waits longer for that.
+ */
+static void run_no_fork_server(
+    char** argv,
+    char** envp,
+    struct no_fork_child* current,
+    struct no_fork_child* spare)
+{
+    // Writing to a pipe of a JVM that has died is handled by reading
+    // its exit status.
+    signal(SIGPIPE, SIG_IGN);
+    pid_t reported_pid = -1;
+    while (true) {
+        uint32_t child_killed;
+        if (read(FORKSRV_FD, &child_killed, 4) != 4) {
+            // afl-fuzz has exited.
+            if (current->pid != -1) {
+                kill(current->pid, SIGKILL);
+            }
+            kill(spare->pid, SIGKILL);
+            _exit(0);
+        }
+        if (child_killed && current->pid == reported_pid) {
+            // The fuzzed JVM was killed after it had already reported
+            // that it was done.
+            waitpid(current->pid, NULL, 0);
+            close_no_fork_child(current);
+            replace_no_fork_child(argv, envp, current, spare);
+        }
+        int wstatus;
+        // Only waits if the spare JVM had no time to start up. If it
+        // could not, that is the result of this execution.
+        bool is_ready = wait_for_no_fork_child(current, &wstatus);
+        reported_pid = current->pid;
+        write(FORKSRV_FD + 1, &current->pid, 4);
+        if (is_ready) {
+            uint32_t go = 0;
+            write(current->go_fd, &go, 4);
+            if (read(current->done_fd, &wstatus, 4) == 4) {
+                // Same as what waitpid() gives for a stopped
+                // persistent mode child.
+                wstatus = (SIGSTOP << 8) | 0x7f;
+            } else {
+                waitpid(current->pid, &wstatus, 0);
+                close_no_fork_child(current);
+            }
+        } else {
+            close_no_fork_child(current);
+        }
+        write(FORKSRV_FD + 1, &wstatus, 4);
+        if (current->pid == -1) {
+            replace_no_fork_child(argv, envp, current, spare);
+        }
+    }
+}
+
+/**
+ * Waits until the fork server of the non-forking persistent mode
+ * tells to start the next execution.
+ */
+static void wait_for_no_fork_execution(void)
+{
+    uint32_t go;
+    if (read(NO_FORK_FD, &go, 4) != 4) {
+        // The fork server has exited.
+        _exit(0);
+    }
+}
+
+/**
+ * Attaches the shared memory that afl++ writes test cases to.
+ */
+static void attach_input_area(void)
+{
+    int shm_id = atoi(getenv(SHM_FUZZ_ENV_VAR));
+    struct shmid_ds info;
+    if (shmctl(shm_id, IPC_STAT, &info) == -1) {
+        perror("No shared memory for test cases!");
+        abort();
+    }
+    g_input_area = shmat(shm_id, NULL, SHM_RDONLY);
+    if (g_input_area == (void*)-1) {
+        perror("No shared memory for test cases!");
+        abort();
+    }
+    g_input_area_size = info.shm_segsz;
+}
+
+JNIEXPORT jobject JNICALL Java_javafl_JavaAfl__1get_1shared_1input
+  (JNIEnv * env, jclass cls)
+{
+    if (g_input_area == (void*)-1) {
+        return NULL;
+    }
+    return (*env)->NewDirectByteBuffer(env, g_input_area, g_input_area_size);
+}
+
+JNIEXPORT jint JNICALL Java_javafl_JavaAfl__1copy_1shared_1input
+  (JNIEnv * env, jclass cls, jbyteArray target)
+{
+    uint32_t length;
+    memcpy(&length, g_input_area, sizeof(length));
+    if (length > g_input_area_size - sizeof(length)) {
+        length = g_input_area_size - sizeof(length);
+    }
+    jsize target_length = (*env)->GetArrayLength(env, target);
+    if (length > (uint32_t)target_length) {
+        length = target_length;
+    }
+    (*env)->SetByteArrayRegion(
+        env, target, 0, length,
+        (const jbyte*)((const char*)g_input_area + sizeof(length)));
+    return length;
 }
 
 JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
-  (JNIEnv * env, jclass cls, jboolean is_persistent)
+  (JNIEnv * env, jclass cls, jboolean is_persistent, jboolean reads_shared_input)
 {
     if (g_initialized) {
         fprintf(
@@ -102,9 +622,48 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
         abort();
     }
 
-    bool use_forkserver = true;
-    {
-        int result = write(FORKSRV_FD + 1, "\x00\x00\x00\x00", 4);
+    g_is_no_fork_child = getenv(NO_FORK_CHILD_ENV_VAR) != NULL;
+    bool use_forkserver = !g_is_no_fork_child;
+    // afl++ only offers the shared memory when it can use it, and
+    // then it stops writing test cases anywhere else once the fork
+    // server asks for it.
+    bool use_shared_input = reads_shared_input
+        && getenv(SHM_FUZZ_ENV_VAR) != NULL;
+    // The JVMs of the non-forking persistent mode start before the
+    // hello message, so that afl-fuzz waits for them with its start-up
+    // timeout instead of the timeout of the first execution.
+    char** no_fork_argv = NULL;
+    char** no_fork_envp = NULL;
+    struct no_fork_child no_fork_current;
+    struct no_fork_child no_fork_spare;
+    if (use_forkserver
+        && is_persistent
+        && getenv(NO_FORK_ENV_VAR) != NULL
+        && fcntl(FORKSRV_FD + 1, F_GETFD) != -1) {
+        no_fork_argv = read_command_line();
+        if (no_fork_argv != NULL) {
+            no_fork_envp = no_fork_child_environment();
+            start_no_fork_child(no_fork_argv, no_fork_envp, &no_fork_current);
+            start_no_fork_child(no_fork_argv, no_fork_envp, &no_fork_spare);
+            int wstatus;
+            wait_for_no_fork_child(&no_fork_current, &wstatus);
+        } else {
+            fprintf(
+                stderr,
+                "Could not read the command line for %s, "
+                "falling back to forking persistent mode.\n",
+                NO_FORK_ENV_VAR);
+        }
+    }
+    if (use_forkserver) {
+        // afl++ uses the map size of the hello message for its own
+        // map, and original afl ignores the message.
+        uint32_t hello = FS_OPT_ENABLED | FS_OPT_MAPSIZE
+            | ((uint32_t)(g_map_size - 1) << 1);
+        if (use_shared_input) {
+            hello |= FS_OPT_SHDMEM_FUZZ;
+        }
+        int result = write(FORKSRV_FD + 1, &hello, 4);
         if (result == -1) {
             if (errno == EBADF) {
                 use_forkserver = false;
@@ -114,6 +673,25 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
             }
         }
     }
+    if (use_forkserver && use_shared_input) {
+        uint32_t reply;
+        if (read(FORKSRV_FD, &reply, 4) != 4
+            || (reply & FS_OPT_SHDMEM_FUZZ) == 0) {
+            fprintf(
+                stderr,
+                "afl-fuzz did not agree to shared memory test cases!\n");
+            abort();
+        }
+    }
+    if (use_shared_input) {
+        // Children inherit the attached memory.
+        attach_input_area();
+    }
+
+    if (no_fork_argv != NULL && use_forkserver) {
+        run_no_fork_server(
+            no_fork_argv, no_fork_envp, &no_fork_current, &no_fork_spare);
+    }
 
     bool child_stopped = false;
     union
@@ -178,6 +756,13 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
     g_is_persistent = is_persistent;
     g_initialized = true;
 
+    if (g_is_no_fork_child) {
+        // Tells the fork server that start-up is over.
+        uint32_t ready = 0;
+        write(NO_FORK_FD + 1, &ready, 4);
+        wait_for_no_fork_execution();
+    }
+
     const char* afl_shm_id = getenv(SHM_ENV_VAR);
     if (afl_shm_id == NULL) {
         return;
@@ -185,26 +770,34 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
 
     // This area of zeros is here only to be able to zero the map
     // memory on Java side fast when in persistent fuzzing mode.
-    g_zero_area = calloc(1, MAP_SIZE);
+    g_zero_area = calloc(1, g_map_size);
 
-    jint start_location = get_prev_location(env, cls);
+    jint start_location = get_prev_location(env, cls) & (g_map_size - 1);
     // Have at least something in the map so that afl-fuzz or
     // afl-showmap don't give confusing hard to debug messages.
     ((char*)g_zero_area)[start_location] = 1;
 
-    g_afl_area = shmat(atoi(afl_shm_id), NULL, 0);
+    g_afl_area = g_direct_area;
+    if (g_afl_area == (void*)-1) {
+        g_afl_area = shmat(atoi(afl_shm_id), NULL, 0);
+    }
     if (g_afl_area == (void*)-1) {
         perror("No shared memory area!");
         abort();
     }
     init_map_field(env, cls);
+    g_start_location = start_location;
     // It's possible that Java side instrumentation has already
     // written something to the map. Reset it so that especially
     // persistent mode gets a clean slate to start. Deferred mode
     // also should benefit from the map being less full in the
     // beginning.
-    (*env)->SetByteArrayRegion(
-        env, get_map_field(env, cls), 0, MAP_SIZE, g_zero_area);
+    if (!transfer_dirty_map(env, cls, NULL, false)) {
+        (*env)->SetByteArrayRegion(
+            env, get_map_field(env, cls), 0, g_map_size, g_zero_area);
+    }
+    // Same for the probes that write directly to the shared memory.
+    memset(g_afl_area, 0, g_map_size);
 }
 
 /**
@@ -213,14 +806,38 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1init_1impl
  */
 static void send_map(JNIEnv * env, jclass cls)
 {
-    if (g_afl_area != (void*)-1) {
-        jobject map_field = get_map_field(env, cls);
-        (*env)->GetByteArrayRegion(env, map_field, 0, MAP_SIZE, g_afl_area);
-        (*env)->SetByteArrayRegion(env, map_field, 0, MAP_SIZE, g_zero_area);
+    if (g_afl_area == (void*)-1) {
+        return;
+    }
+    // Probes of classes instrumented with --direct-map have already
+    // written to the shared memory, which afl-fuzz clears before
+    // each execution, so it can't be overwritten here.
+    bool merge = get_boolean_field(env, cls, "_direct_map_used");
+    if (merge && !get_boolean_field(env, cls, "_java_map_used")) {
+        // Only the start location would be in the Java map.
+        unsigned char* start = (unsigned char*)g_afl_area + g_start_location;
+        if (*start < 255) {
+            (*start)++;
+        }
+        return;
     }
+    if (transfer_dirty_map(env, cls, g_afl_area, merge)) {
+        return;
+    }
+    jobject map_field = get_map_field(env, cls);
+    if (!merge) {
+        (*env)->GetByteArrayRegion(env, map_field, 0, g_map_size, g_afl_area);
+        (*env)->SetByteArrayRegion(env, map_field, 0, g_map_size, g_zero_area);
+        return;
+    }
+    unsigned char* map = (*env)->GetPrimitiveArrayCritical(
+        env, map_field, NULL);
+    merge_map(g_afl_area, map, g_map_size);
+    map[g_start_location] = 1;
+    (*env)->ReleasePrimitiveArrayCritical(env, map_field, map, 0);
 }
 
-JNIEXPORT void JNICALL Java_javafl_JavaAfl__1after_1main
+JNIEXPORT void JNICALL Java_javafl_JavaAfl__1after_1main_1impl
   (JNIEnv * env, jclass cls)
 {
     // Do nothing if we're not running inside something that can read
@@ -243,7 +860,7 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1after_1main
     _Exit(0);
 }
 
-JNIEXPORT void JNICALL Java_javafl_JavaAfl__1handle_1uncaught_1exception
+JNIEXPORT void JNICALL Java_javafl_JavaAfl__1handle_1uncaught_1exception_1impl
   (JNIEnv * env, jclass cls)
 {
     if (g_afl_area == (void*)-1) {
@@ -253,9 +870,15 @@ JNIEXPORT void JNICALL Java_javafl_JavaAfl__1handle_1uncaught_1exception
     abort();
 }
 
-JNIEXPORT void JNICALL Java_javafl_JavaAfl__1send_1map
+JNIEXPORT void JNICALL Java_javafl_JavaAfl__1send_1map_1impl
   (JNIEnv * env, jclass cls)
 {
     send_map(env, cls);
-    kill(getpid(), SIGSTOP);
+    if (g_is_no_fork_child) {
+        uint32_t done = 0;
+        write(NO_FORK_FD + 1, &done, 4);
+        wait_for_no_fork_execution();
+    } else {
+        kill(getpid(), SIGSTOP);
+    }
 }
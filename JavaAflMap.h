@@ -0,0 +1,153 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Map transfer routines that don't depend on JNI. These are shared
+// with the map transfer benchmark.
+
+#ifndef JAVA_AFL_MAP_H
+#define JAVA_AFL_MAP_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+
+/**
+ * Adds source map values to target map with saturation and zeroes
+ * the source map. Maps are mostly empty, so zero words are skipped.
+ */
+static void merge_map(
+    unsigned char* target, unsigned char* source, size_t length)
+{
+    size_t i = 0;
+    for (; i + sizeof(uint64_t) <= length; i += sizeof(uint64_t)) {
+        uint64_t word;
+        memcpy(&word, source + i, sizeof(word));
+        if (word == 0) {
+            continue;
+        }
+        for (size_t j = i; j < i + sizeof(uint64_t); j++) {
+            unsigned value = target[j] + source[j];
+            target[j] = value > 0xff ? 0xff : value;
+        }
+        memset(source + i, 0, sizeof(uint64_t));
+    }
+    for (; i < length; i++) {
+        unsigned value = target[i] + source[i];
+        target[i] = value > 0xff ? 0xff : value;
+        source[i] = 0;
+    }
+}
+
+static void merge_value(unsigned char* target, unsigned value)
+{
+    value += *target;
+    *target = value > 0xff ? 0xff : value;
+}
+
+/**
+ * Like merge_map(), but for a source map that another thread may be
+ * writing to. Each non-zero word is swapped with zero in one atomic
+ * operation, so an increment is either merged now or left in the
+ * source for the next merge.
+ */
+static void merge_map_atomically(
+    unsigned char* target, unsigned char* source, size_t length)
+{
+    size_t i = 0;
+    for (; i < length && (uintptr_t)(source + i) % sizeof(uint64_t) != 0; i++) {
+        if (source[i] != 0) {
+            merge_value(target + i, __atomic_exchange_n(source + i, 0, __ATOMIC_RELAXED));
+        }
+    }
+    for (; i + sizeof(uint64_t) <= length; i += sizeof(uint64_t)) {
+        uint64_t* word_address = (uint64_t*)(source + i);
+        if (__atomic_load_n(word_address, __ATOMIC_RELAXED) == 0) {
+            continue;
+        }
+        uint64_t word = __atomic_exchange_n(word_address, 0, __ATOMIC_RELAXED);
+        unsigned char bytes[sizeof(uint64_t)];
+        memcpy(bytes, &word, sizeof(word));
+        for (size_t j = 0; j < sizeof(uint64_t); j++) {
+            merge_value(target + i + j, bytes[j]);
+        }
+    }
+    for (; i < length; i++) {
+        if (source[i] != 0) {
+            merge_value(target + i, __atomic_exchange_n(source + i, 0, __ATOMIC_RELAXED));
+        }
+    }
+}
+
+static bool has_dirty_lines(const unsigned char* dirty, size_t lines)
+{
+    size_t i = 0;
+    for (; i + sizeof(uint64_t) <= lines; i += sizeof(uint64_t)) {
+        uint64_t word;
+        memcpy(&word, dirty + i, sizeof(word));
+        if (word != 0) {
+            return true;
+        }
+    }
+    for (; i < lines; i++) {
+        if (dirty[i]) {
+            return true;
+        }
+    }
+    return false;
+}
+
+/**
+ * Copies or merges the lines of the map that are marked dirty to the
+ * target and zeroes them and their marks. Target can be NULL when
+ * the lines only need to be zeroed.
+ */
+static void transfer_dirty_lines(
+    unsigned char* target,
+    unsigned char* map,
+    unsigned char* dirty,
+    size_t lines,
+    size_t line_size,
+    bool merge)
+{
+    for (size_t i = 0; i < lines; i += sizeof(uint64_t)) {
+        uint64_t word = 0;
+        size_t count = lines - i;
+        if (count > sizeof(word)) {
+            count = sizeof(word);
+        }
+        memcpy(&word, dirty + i, count);
+        if (word == 0) {
+            continue;
+        }
+        for (size_t line = i; line < i + count; line++) {
+            if (!dirty[line]) {
+                continue;
+            }
+            size_t offset = line * line_size;
+            if (target == NULL) {
+                memset(map + offset, 0, line_size);
+            } else if (merge) {
+                merge_map(target + offset, map + offset, line_size);
+            } else {
+                memcpy(target + offset, map + offset, line_size);
+                memset(map + offset, 0, line_size);
+            }
+        }
+        memset(dirty + i, 0, count);
+    }
+}
+
+#endif // #ifndef JAVA_AFL_MAP_H
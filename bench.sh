@@ -0,0 +1,55 @@
+#!/bin/bash
+#
+# Copyright 2018  Jussi Judin
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Runs the benchmarks of bench/ after ./build.sh and writes their
+# results in the JSON format of JMH to out/bench/results.json, or to
+# the file given in BENCH_RESULTS. Arguments go to javafl.JavaAflBench,
+# for example --iterations 10, --modes none,static or probes to only
+# run the probe benchmarks. Classes are instrumented from asm-6.1.jar
+# and any jars that are listed in BENCH_JARS.
+
+set -euo pipefail
+
+DIR=$(cd "$(dirname "${BASH_SOURCE[0]}")"; pwd)
+OUT="$DIR"/out/bench
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -cp "$DIR"/java-afl-instrument.jar -d "$OUT" \
+      "$DIR"/bench/JavaAflBench.java \
+      "$DIR"/bench/Loops.java \
+      "$DIR"/bench/EmptyLoop.java
+cc -O2 -o "$OUT"/fork-server "$DIR"/bench/fork-server.c
+for mode in static dirty-tracking; do
+    flags=(--deterministic)
+    if [[ "$mode" != static ]]; then
+        flags+=(--"$mode")
+    fi
+    java -jar "$DIR"/java-afl-instrument.jar "${flags[@]}" \
+         "$OUT"/map/"$mode" "$OUT"/bench/EmptyLoop.class > /dev/null
+done
+
+jars=("$DIR"/asm-6.1.jar ${BENCH_JARS:-})
+jar_args=()
+for jar in "${jars[@]}"; do
+    jar_args+=(--jar "$jar")
+done
+java -cp "$DIR"/java-afl-instrument.jar:"$OUT" javafl.JavaAflBench \
+     "${jar_args[@]}" \
+     --fork-server "$OUT"/fork-server \
+     --map-classes "$OUT"/map \
+     --json "${BENCH_RESULTS:-$OUT/results.json}" \
+     "$@"
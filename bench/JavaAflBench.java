@@ -0,0 +1,587 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmarks for the probes, the map transfer and the instrumentation.
+ *
+ * Each benchmark runs a number of warmup iterations and then a number
+ * of measured iterations of a fixed time, like JMH does. Probes of
+ * each mode are measured in a JVM of their own. Results are
+ * printed as a table and can also be written in the JSON format of
+ * JMH, so that tools that compare JMH results work with them.
+ *
+ * Map transfer is measured with bench/fork-server.c running the
+ * instrumented bench.EmptyLoop, as the map can only be sent to a
+ * fork server. See bench.sh for running everything.
+ */
+public class JavaAflBench
+{
+    static private final String[] LOOPS = {"checksum", "tokens", "dispatch"};
+    static private final String[] PROBE_MODES = {
+        "none", "static", "method-locals", "thread-aware", "direct-map",
+        "dirty-tracking", "cmplog", "split-compares"};
+    static private final int[] MAP_SIZES = {1 << 16, 1 << 18, 1 << 20, 1 << 22};
+    // Student's t values for 99.9% confidence intervals by degrees of
+    // freedom, like JMH reports. Larger sample counts use the last one.
+    static private final double[] T_999 = {
+        0, 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041,
+        4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965,
+        3.922, 3.883, 3.850};
+
+    static private int _warmup_iterations = 3;
+    static private int _iterations = 5;
+    static private long _iteration_ms = 1000;
+    static private int _executions = 5000;
+    // Keeps the JIT compiler from removing the measured work.
+    static private volatile long _sink = 0;
+
+    static private class Result
+    {
+        String benchmark;
+        String mode;
+        String unit;
+        Map<String, String> params;
+        double[] samples;
+
+        Result(String benchmark_, String mode_, String unit_, Map<String, String> params_, double[] samples_)
+        {
+            benchmark = benchmark_;
+            mode = mode_;
+            unit = unit_;
+            params = params_;
+            samples = samples_;
+        }
+
+        double score()
+        {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            return sum / samples.length;
+        }
+
+        double error()
+        {
+            if (samples.length < 2) {
+                return Double.NaN;
+            }
+            double score = score();
+            double squares = 0;
+            for (double sample : samples) {
+                squares += (sample - score) * (sample - score);
+            }
+            double deviation = Math.sqrt(squares / (samples.length - 1));
+            double t = T_999[Math.min(samples.length - 1, T_999.length - 1)];
+            return t * deviation / Math.sqrt(samples.length);
+        }
+    }
+
+    static private List<Result> _results = new ArrayList<Result>();
+
+    private static Map<String, String> _params(String... keys_values)
+    {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keys_values.length; i += 2) {
+            result.put(keys_values[i], keys_values[i + 1]);
+        }
+        return result;
+    }
+
+    private static void _add(Result result)
+    {
+        _results.add(result);
+        StringBuilder name = new StringBuilder(result.benchmark);
+        for (Map.Entry<String, String> param : result.params.entrySet()) {
+            name.append(" ").append(param.getKey()).append("=").append(param.getValue());
+        }
+        System.out.println(String.format(
+            "%-60s %12.3f +- %9.3f %s",
+            name, result.score(), result.error(), result.unit));
+    }
+
+    /**
+     * Returns seconds per operation for each measured iteration.
+     */
+    private static double[] _measure(Callable<Long> operation) throws Exception
+    {
+        double[] samples = new double[_iterations];
+        for (int i = 0; i < _warmup_iterations + _iterations; i++) {
+            long operations = 0;
+            long start = System.nanoTime();
+            long end = start + _iteration_ms * 1000000;
+            long now;
+            do {
+                _sink += operation.call();
+                operations++;
+                now = System.nanoTime();
+            } while (now < end);
+            if (i >= _warmup_iterations) {
+                samples[i - _warmup_iterations] = (now - start) / 1e9 / operations;
+            }
+        }
+        return samples;
+    }
+
+    private static double[] _scale(double[] samples, double factor, boolean invert)
+    {
+        double[] result = new double[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            result[i] = invert ? factor / samples[i] : factor * samples[i];
+        }
+        return result;
+    }
+
+    private static byte[] _read(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+
+    private static JavaAflInstrument.InstrumentationOptions _options(String mode)
+    {
+        JavaAflInstrument.InstrumentationOptions options =
+            new JavaAflInstrument.InstrumentationOptions(100, false, true);
+        if (mode.equals("method-locals")) {
+            options.method_locals = true;
+        } else if (mode.equals("thread-aware")) {
+            options.thread_aware = true;
+        } else if (mode.equals("direct-map")) {
+            options.direct_map = true;
+        } else if (mode.equals("dirty-tracking")) {
+            options.dirty_tracking = true;
+        } else if (mode.equals("cmplog")) {
+            options.cmplog = true;
+        } else if (mode.equals("split-compares")) {
+            options.split_compares = true;
+        } else if (!mode.equals("static")) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        return options;
+    }
+
+    /**
+     * Loads the given classes as instrumented with the given mode, or
+     * as they are with mode "none".
+     */
+    static private class InstrumentedLoader extends ClassLoader
+    {
+        private Map<String, byte[]> _classes = new HashMap<String, byte[]>();
+
+        InstrumentedLoader(String mode, String[] names) throws IOException
+        {
+            super(JavaAflBench.class.getClassLoader());
+            for (String name : names) {
+                String filename = name.replace('.', '/') + ".class";
+                byte[] data = _read(getParent().getResourceAsStream(filename));
+                if (!mode.equals("none")) {
+                    data = JavaAflInstrument.instrument_class_uncached(
+                        data, filename, _options(mode)).data;
+                }
+                _classes.put(name, data);
+            }
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+            throws ClassNotFoundException
+        {
+            synchronized (getClassLoadingLock(name)) {
+                byte[] data = _classes.get(name);
+                if (data == null) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> result = findLoadedClass(name);
+                if (result == null) {
+                    result = defineClass(name, data, 0, data.length);
+                }
+                return result;
+            }
+        }
+    }
+
+    private static void _bench_probes_in_process(String mode) throws Exception
+    {
+        // Printable text with some line breaks.
+        byte[] data = new byte[65536];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(random.nextInt(20) == 0 ? '\n' : ' ' + random.nextInt(95));
+        }
+        InstrumentedLoader loader = new InstrumentedLoader(
+            mode, new String[] {"bench.Loops"});
+        Class<?> loops = loader.loadClass("bench.Loops");
+        for (String name : LOOPS) {
+            // Calls through reflection take some nanoseconds,
+            // where the loops take hundreds of microseconds.
+            Method loop = loops.getMethod(name, byte[].class);
+            double[] samples = _measure(() -> (Long)loop.invoke(null, data));
+            _add(new Result(
+                "probes", "avgt", "us/op",
+                _params("loop", name, "mode", mode),
+                _scale(samples, 1e6, false)));
+        }
+    }
+
+    /**
+     * Measures each mode in a JVM of its own, like JMH forks do, so
+     * that the code that the JIT compiler has seen for earlier modes
+     * does not affect later ones.
+     */
+    private static void _bench_probes(String[] modes) throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (String mode : modes) {
+            File samples = File.createTempFile("java-afl-bench", ".txt");
+            try {
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.addAll(Arrays.asList(
+                    "-cp", System.getProperty("java.class.path"),
+                    JavaAflBench.class.getName(),
+                    "--warmup", String.valueOf(_warmup_iterations),
+                    "--iterations", String.valueOf(_iterations),
+                    "--time", String.valueOf(_iteration_ms),
+                    "--modes", mode,
+                    "--samples", samples.getPath(),
+                    "probes"));
+                ProcessBuilder builder = new ProcessBuilder(command);
+                // The child prints its results as it goes.
+                builder.inheritIO();
+                if (builder.start().waitFor() != 0) {
+                    throw new IOException("Probe benchmarks failed with mode " + mode);
+                }
+                _results.addAll(_read_samples(samples));
+            } finally {
+                samples.delete();
+            }
+        }
+    }
+
+    private static void _bench_instrument(List<String> jars) throws Exception
+    {
+        List<String> filenames = new ArrayList<String>();
+        List<byte[]> classes = new ArrayList<byte[]>();
+        long bytes = 0;
+        for (String jar : jars) {
+            try (ZipFile zip = new ZipFile(jar)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        byte[] data = _read(zip.getInputStream(entry));
+                        filenames.add(entry.getName());
+                        classes.add(data);
+                        bytes += data.length;
+                    }
+                }
+            }
+        }
+        double[] samples = _measure(() -> {
+                long size = 0;
+                for (int i = 0; i < classes.size(); i++) {
+                    size += JavaAflInstrument.instrument_class_uncached(
+                        classes.get(i), filenames.get(i), _options("static")).data.length;
+                }
+                return size;
+            });
+        Map<String, String> params = _params(
+            "classes", String.valueOf(classes.size()),
+            "bytes", String.valueOf(bytes));
+        _add(new Result(
+            "instrument.classes", "thrpt", "classes/s", params,
+            _scale(samples, classes.size(), true)));
+        _add(new Result(
+            "instrument.bytes", "thrpt", "MB/s", params,
+            _scale(samples, bytes / 1e6, true)));
+    }
+
+    /**
+     * Runs the fork server stand-in once and returns seconds per
+     * execution.
+     */
+    private static double _run_fork_server(
+        String fork_server, String classes, int map_size, boolean no_fork)
+        throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(
+            fork_server, String.valueOf(_executions),
+            java, "-cp", classes, "bench.EmptyLoop");
+        Map<String, String> environment = builder.environment();
+        environment.put("JAVA_AFL_MAP_SIZE", String.valueOf(map_size));
+        environment.remove("AFL_MAP_SIZE");
+        if (no_fork) {
+            environment.put("JAVA_AFL_NO_FORK", "1");
+        } else {
+            environment.remove("JAVA_AFL_NO_FORK");
+        }
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        String line;
+        try (BufferedReader output = new BufferedReader(
+                 new InputStreamReader(process.getInputStream(), "UTF-8"))) {
+            line = output.readLine();
+        }
+        if (process.waitFor() != 0 || line == null) {
+            throw new IOException(fork_server + " failed with " + classes);
+        }
+        return 1 / Double.parseDouble(line);
+    }
+
+    private static void _bench_map(String fork_server, String classes_directory)
+        throws Exception
+    {
+        for (String mode : new String[] {"static", "dirty-tracking"}) {
+            String classes = new File(classes_directory, mode).getPath();
+            for (String server : new String[] {"fork", "no-fork"}) {
+                for (int map_size : MAP_SIZES) {
+                    for (int i = 0; i < _warmup_iterations; i++) {
+                        _run_fork_server(fork_server, classes, map_size, server.equals("no-fork"));
+                    }
+                    double[] samples = new double[_iterations];
+                    for (int i = 0; i < _iterations; i++) {
+                        samples[i] = _run_fork_server(
+                            fork_server, classes, map_size, server.equals("no-fork"));
+                    }
+                    _add(new Result(
+                        "map", "avgt", "us/op",
+                        _params("mode", mode, "server", server, "map_size", String.valueOf(map_size)),
+                        _scale(samples, 1e6, false)));
+                }
+            }
+        }
+    }
+
+    private static String _quote(String value)
+    {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String _number(double value)
+    {
+        return Double.isNaN(value) ? "\"NaN\"" : String.valueOf(value);
+    }
+
+    /**
+     * Writes results for the JVM that started this one, a result per
+     * line with tab separated fields.
+     */
+    private static void _write_samples(String filename) throws IOException
+    {
+        try (PrintStream output = new PrintStream(filename, "UTF-8")) {
+            for (Result result : _results) {
+                List<String> params = new ArrayList<String>();
+                for (Map.Entry<String, String> param : result.params.entrySet()) {
+                    params.add(param.getKey() + "=" + param.getValue());
+                }
+                List<String> samples = new ArrayList<String>();
+                for (double sample : result.samples) {
+                    samples.add(String.valueOf(sample));
+                }
+                output.println(
+                    result.benchmark + "\t" + result.mode + "\t" + result.unit
+                    + "\t" + String.join(",", params) + "\t" + String.join(",", samples));
+            }
+        }
+    }
+
+    private static List<Result> _read_samples(File file) throws IOException
+    {
+        List<Result> results = new ArrayList<Result>();
+        try (BufferedReader input = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = input.readLine()) != null) {
+                String[] fields = line.split("\t");
+                Map<String, String> params = new LinkedHashMap<String, String>();
+                for (String param : fields[3].split(",")) {
+                    String[] key_value = param.split("=", 2);
+                    params.put(key_value[0], key_value[1]);
+                }
+                String[] values = fields[4].split(",");
+                double[] samples = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    samples[i] = Double.parseDouble(values[i]);
+                }
+                results.add(new Result(fields[0], fields[1], fields[2], params, samples));
+            }
+        }
+        return results;
+    }
+
+    private static void _write_json(String filename) throws IOException
+    {
+        try (PrintStream output = new PrintStream(filename, "UTF-8")) {
+            output.println("[");
+            for (int i = 0; i < _results.size(); i++) {
+                Result result = _results.get(i);
+                double score = result.score();
+                double error = result.error();
+                output.println("    {");
+                output.println("        \"benchmark\" : " + _quote("javafl.JavaAflBench." + result.benchmark) + ",");
+                output.println("        \"mode\" : " + _quote(result.mode) + ",");
+                output.println("        \"threads\" : 1,");
+                output.println("        \"forks\" : 1,");
+                output.println("        \"jdkVersion\" : " + _quote(System.getProperty("java.version")) + ",");
+                output.println("        \"vmName\" : " + _quote(System.getProperty("java.vm.name")) + ",");
+                output.println("        \"vmVersion\" : " + _quote(System.getProperty("java.vm.version")) + ",");
+                output.println("        \"warmupIterations\" : " + _warmup_iterations + ",");
+                output.println("        \"warmupTime\" : " + _quote(_iteration_ms + " ms") + ",");
+                output.println("        \"measurementIterations\" : " + _iterations + ",");
+                output.println("        \"measurementTime\" : " + _quote(_iteration_ms + " ms") + ",");
+                List<String> params = new ArrayList<String>();
+                for (Map.Entry<String, String> param : result.params.entrySet()) {
+                    params.add(_quote(param.getKey()) + " : " + _quote(param.getValue()));
+                }
+                output.println("        \"params\" : {" + String.join(", ", params) + "},");
+                output.println("        \"primaryMetric\" : {");
+                output.println("            \"score\" : " + _number(score) + ",");
+                output.println("            \"scoreError\" : " + _number(error) + ",");
+                output.println("            \"scoreConfidence\" : [" + _number(score - error) + ", " + _number(score + error) + "],");
+                output.println("            \"scoreUnit\" : " + _quote(result.unit) + ",");
+                List<String> samples = new ArrayList<String>();
+                for (double sample : result.samples) {
+                    samples.add(_number(sample));
+                }
+                output.println("            \"rawData\" : [[" + String.join(", ", samples) + "]]");
+                output.println("        },");
+                output.println("        \"secondaryMetrics\" : {}");
+                output.println(i + 1 < _results.size() ? "    }," : "    }");
+            }
+            output.println("]");
+        }
+    }
+
+    private static int usage()
+    {
+        System.err.println(
+            "Usage: JavaAflBench [--warmup N]|[--iterations N]|[--time ms]|[--json file]|[--modes mode,...]|[--jar file]...|[--fork-server path --map-classes dir]|[--executions N] [probes|instrument|map]...");
+        return 1;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String json = null;
+        // Set for the JVMs that measure the probes of a mode.
+        String samples = null;
+        String[] modes = PROBE_MODES;
+        List<String> jars = new ArrayList<String>();
+        String fork_server = null;
+        String map_classes = null;
+        List<String> groups = new ArrayList<String>();
+        int arg_index = 0;
+        for (; arg_index < args.length; arg_index++) {
+            String argument = args[arg_index];
+            if (!argument.startsWith("--")) {
+                groups.add(argument);
+                continue;
+            }
+            arg_index++;
+            if (arg_index >= args.length) {
+                System.exit(usage());
+            }
+            String value = args[arg_index];
+            if (argument.equals("--warmup")) {
+                _warmup_iterations = Integer.parseInt(value);
+            } else if (argument.equals("--iterations")) {
+                _iterations = Integer.parseInt(value);
+            } else if (argument.equals("--time")) {
+                _iteration_ms = Long.parseLong(value);
+            } else if (argument.equals("--json")) {
+                json = value;
+            } else if (argument.equals("--samples")) {
+                samples = value;
+            } else if (argument.equals("--modes")) {
+                modes = value.split(",");
+            } else if (argument.equals("--jar")) {
+                jars.add(value);
+            } else if (argument.equals("--fork-server")) {
+                fork_server = value;
+            } else if (argument.equals("--map-classes")) {
+                map_classes = value;
+            } else if (argument.equals("--executions")) {
+                _executions = Integer.parseInt(value);
+            } else {
+                System.exit(usage());
+            }
+        }
+        if (_iterations < 1) {
+            System.exit(usage());
+        }
+        if (groups.isEmpty()) {
+            groups.add("probes");
+            if (!jars.isEmpty()) {
+                groups.add("instrument");
+            }
+            if (fork_server != null && map_classes != null) {
+                groups.add("map");
+            }
+        }
+        for (String group : groups) {
+            if (group.equals("probes") && samples != null) {
+                for (String mode : modes) {
+                    _bench_probes_in_process(mode);
+                }
+            } else if (group.equals("probes")) {
+                _bench_probes(modes);
+            } else if (group.equals("instrument") && !jars.isEmpty()) {
+                _bench_instrument(jars);
+            } else if (group.equals("map") && fork_server != null && map_classes != null) {
+                _bench_map(fork_server, map_classes);
+            } else {
+                System.exit(usage());
+            }
+        }
+        if (samples != null) {
+            _write_samples(samples);
+        }
+        if (json != null) {
+            _write_json(json);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+/**
+ * Loops of different shapes for measuring the overhead of probes.
+ * Each one goes through the given data once.
+ */
+public class Loops
+{
+    /**
+     * Straight loop with one block per byte, like checksums.
+     */
+    public static long checksum(byte[] data)
+    {
+        int a = 1;
+        int b = 0;
+        for (int i = 0; i < data.length; i++) {
+            a = (a + (data[i] & 0xff)) % 65521;
+            b = (b + a) % 65521;
+        }
+        return ((long)b << 16) | a;
+    }
+
+    /**
+     * Branchy loop that splits the data into tokens, like lexers.
+     */
+    public static long tokens(byte[] data)
+    {
+        long tokens = 0;
+        long numbers = 0;
+        boolean in_word = false;
+        for (int i = 0; i < data.length; i++) {
+            int value = data[i] & 0xff;
+            if (value >= '0' && value <= '9') {
+                numbers = numbers * 10 + value - '0';
+                in_word = true;
+            } else if ((value >= 'a' && value <= 'z') || (value >= 'A' && value <= 'Z')) {
+                if (!in_word) {
+                    tokens++;
+                }
+                in_word = true;
+            } else if (value == ' ' || value == '\n') {
+                in_word = false;
+            } else {
+                tokens++;
+                in_word = false;
+            }
+        }
+        return tokens + numbers;
+    }
+
+    /**
+     * State machine that switches on each byte, like parsers.
+     */
+    public static long dispatch(byte[] data)
+    {
+        int state = 0;
+        long depth = 0;
+        long result = 0;
+        for (int i = 0; i < data.length; i++) {
+            switch (data[i] & 0x0f) {
+            case 0:
+            case 1:
+                depth++;
+                break;
+            case 2:
+            case 3:
+                if (depth > 0) {
+                    depth--;
+                }
+                break;
+            case 4:
+                state = state == 0 ? 1 : 0;
+                break;
+            case 5:
+            case 6:
+            case 7:
+                if (state == 1) {
+                    result += depth;
+                }
+                break;
+            default:
+                result++;
+                break;
+            }
+        }
+        return result;
+    }
+}
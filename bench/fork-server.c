@@ -0,0 +1,123 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+// Stands in for afl-fuzz and runs a program in the fork server or
+// persistent mode for the given number of executions. Prints the
+// executions per second, which for an empty persistent mode loop is
+// mostly the cost of sending and resetting the map. The map size
+// follows JAVA_AFL_MAP_SIZE like on the Java side.
+//
+// Build and run with:
+//   cc -O2 -o out/fork-server bench/fork-server.c
+//   out/fork-server 10000 java -cp out/ins bench.EmptyLoop
+
+#include <signal.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/shm.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+// Same as in JavaAfl.c.
+static const int FORKSRV_FD = 198;
+
+static double now(void)
+{
+    struct timespec value;
+    clock_gettime(CLOCK_MONOTONIC, &value);
+    return value.tv_sec + value.tv_nsec / 1e9;
+}
+
+int main(int argc, char** argv)
+{
+    if (argc < 3) {
+        fprintf(stderr, "Usage: %s executions command [args]...\n", argv[0]);
+        return 1;
+    }
+    int executions = atoi(argv[1]);
+    size_t map_size = 1 << 16;
+    const char* map_size_value = getenv("JAVA_AFL_MAP_SIZE");
+    if (map_size_value != NULL) {
+        map_size = strtoul(map_size_value, NULL, 0);
+    }
+    int shm_id = shmget(IPC_PRIVATE, map_size, IPC_CREAT | IPC_EXCL | 0600);
+    if (shm_id < 0) {
+        perror("shmget");
+        return 1;
+    }
+    unsigned char* map = shmat(shm_id, NULL, 0);
+    // Linux lets the program attach the removed memory as long as it
+    // stays attached here, and it can't leak.
+    shmctl(shm_id, IPC_RMID, NULL);
+    char shm_id_str[32];
+    snprintf(shm_id_str, sizeof(shm_id_str), "%d", shm_id);
+    setenv("__AFL_SHM_ID", shm_id_str, 1);
+
+    int control[2];
+    int status[2];
+    if (pipe(control) != 0 || pipe(status) != 0) {
+        perror("pipe");
+        return 1;
+    }
+    pid_t server_pid = fork();
+    if (server_pid == 0) {
+        setpgid(0, 0);
+        dup2(control[0], FORKSRV_FD);
+        dup2(status[1], FORKSRV_FD + 1);
+        close(control[0]);
+        close(control[1]);
+        close(status[0]);
+        close(status[1]);
+        execvp(argv[2], argv + 2);
+        perror("execvp");
+        _exit(1);
+    }
+    close(control[0]);
+    close(status[1]);
+
+    uint32_t hello;
+    if (read(status[0], &hello, 4) != 4) {
+        fprintf(stderr, "No fork server hello from %s!\n", argv[2]);
+        return 1;
+    }
+    double start = now();
+    for (int i = 0; i < executions; i++) {
+        // afl-fuzz clears the map before each execution.
+        memset(map, 0, map_size);
+        uint32_t go = 0;
+        int32_t child_pid;
+        int32_t child_status;
+        if (write(control[1], &go, 4) != 4
+            || read(status[0], &child_pid, 4) != 4
+            || read(status[0], &child_status, 4) != 4) {
+            fprintf(stderr, "Fork server died after %d executions!\n", i);
+            return 1;
+        }
+        if (WIFSIGNALED(child_status)) {
+            fprintf(stderr, "Program crashed after %d executions!\n", i);
+            return 1;
+        }
+    }
+    double elapsed = now() - start;
+    printf("%.1f\n", executions / elapsed);
+    kill(-server_pid, SIGKILL);
+    waitpid(server_pid, NULL, 0);
+    return 0;
+}
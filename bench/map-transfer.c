@@ -0,0 +1,105 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Measures how long it takes to send the map to afl-fuzz after each
+// execution, either by copying and zeroing the whole map or by only
+// handling the lines that are marked dirty with --dirty-tracking.
+//
+// Build and run with:
+//   cc -O2 -o out/map-transfer bench/map-transfer.c && out/map-transfer
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "../JavaAflMap.h"
+
+// Same as JavaAfl.DIRTY_LINE_SHIFT.
+static const int DIRTY_LINE_SHIFT = 6;
+static const int ITERATIONS = 2000;
+
+static double now(void)
+{
+    struct timespec value;
+    clock_gettime(CLOCK_MONOTONIC, &value);
+    return value.tv_sec + value.tv_nsec / 1e9;
+}
+
+/**
+ * Simulates an execution that hits the given number of random tuples.
+ */
+static void run_probes(
+    unsigned char* map,
+    unsigned char* dirty,
+    size_t map_size,
+    int tuples)
+{
+    for (int i = 0; i < tuples; i++) {
+        size_t index = ((size_t)rand() * RAND_MAX + rand()) % map_size;
+        map[index]++;
+        dirty[index >> DIRTY_LINE_SHIFT] = 1;
+    }
+}
+
+int main(void)
+{
+    static const int tuple_counts[] = {10, 100, 1000, 10000, 100000};
+    printf("%10s %8s %12s %12s\n", "map size", "tuples", "full us", "dirty us");
+    for (int map_size_pow2 = 16; map_size_pow2 <= 22; map_size_pow2 += 2) {
+        size_t map_size = (size_t)1 << map_size_pow2;
+        size_t lines = map_size >> DIRTY_LINE_SHIFT;
+        unsigned char* map = calloc(1, map_size);
+        unsigned char* zero = calloc(1, map_size);
+        unsigned char* shared = calloc(1, map_size);
+        unsigned char* dirty = calloc(1, lines);
+        for (size_t i = 0; i < sizeof(tuple_counts) / sizeof(*tuple_counts); i++) {
+            int tuples = tuple_counts[i];
+            double full = 0;
+            double tracked = 0;
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                // afl-fuzz clears the shared memory between executions.
+                memset(shared, 0, map_size);
+                run_probes(map, dirty, map_size, tuples);
+                memset(dirty, 0, lines);
+                double start = now();
+                memcpy(shared, map, map_size);
+                memcpy(map, zero, map_size);
+                full += now() - start;
+
+                memset(shared, 0, map_size);
+                run_probes(map, dirty, map_size, tuples);
+                start = now();
+                if (has_dirty_lines(dirty, lines)) {
+                    transfer_dirty_lines(
+                        shared, map, dirty, lines,
+                        (size_t)1 << DIRTY_LINE_SHIFT, false);
+                }
+                tracked += now() - start;
+            }
+            printf(
+                "%10zu %8d %12.1f %12.1f\n",
+                map_size,
+                tuples,
+                full / ITERATIONS * 1e6,
+                tracked / ITERATIONS * 1e6);
+        }
+        free(dirty);
+        free(shared);
+        free(zero);
+        free(map);
+    }
+    return 0;
+}
@@ -47,11 +47,13 @@ JNI_PATHS=(
     -I/usr/lib/jvm/java-8-openjdk-amd64/include
     -I/usr/lib/jvm/java-8-openjdk-amd64/include/linux)
 CLASSPATH=asm-6.1.jar:out
-javac -cp "$CLASSPATH" -d out javafl/CustomInit.java
-javac -cp "$CLASSPATH" -d out javafl/JavaAfl.java
+javac -cp "$CLASSPATH" -d out javafl/CustomInit.java javafl/NoInstrument.java
+# JavaAfl uses sun.misc.Unsafe, and javac of JDK 8 warns about it
+# unless it reads the class library itself instead of its symbol file:
+javac -XDignore.symbol.file -cp "$CLASSPATH" -d out javafl/JavaAfl.java javafl/Warmup.java javafl/Telemetry.java
 javac -cp "$CLASSPATH" -d out javafl/fuzz.java
-javac -cp "$CLASSPATH" -d out javafl/JavaAflInstrument.java
-javac -cp "$CLASSPATH" -d out javafl/run.java
+javac -cp "$CLASSPATH" -d out javafl/JavaAflCache.java javafl/JavaAflFilter.java javafl/JavaAflProbeIds.java javafl/JavaAflCompareSplitter.java javafl/JavaAflReport.java javafl/JavaAflZip.java javafl/JavaAflInstrument.java
+javac -cp "$CLASSPATH" -d out javafl/run.java javafl/agent.java
 javah -cp "$CLASSPATH" -d out -jni javafl.JavaAfl
 cc -Os -shared -Wl,-soname,libjava-afl.so -o out/libjava-afl.so -fPIC "${JNI_PATHS[@]}" JavaAfl.c
 javac -cp "$CLASSPATH" -d out javafl/JavaAflInject.java
@@ -63,26 +65,56 @@ java -cp "$CLASSPATH" javafl.JavaAflInject out/javafl/JavaAfl.class out/libjava-
     cp out/javafl/JavaAfl.class out/full/javafl/
     cp out/javafl/JavaAfl\$*.class out/full/javafl/
     cp out/javafl/CustomInit.class out/full/javafl/
+    cp out/javafl/NoInstrument.class out/full/javafl/
     cp out/javafl/fuzz.class out/full/javafl/
+    cp out/javafl/fuzz\$*.class out/full/javafl/
+    cp out/javafl/Warmup.class out/full/javafl/
+    cp out/javafl/Warmup\$*.class out/full/javafl/
+    cp out/javafl/Telemetry.class out/full/javafl/
     cp out/javafl/run.class out/full/javafl/
+    cp out/javafl/agent.class out/full/javafl/
     cp out/javafl/JavaAflInstrument.class out/full/javafl/
     cp out/javafl/JavaAflInstrument\$*.class out/full/javafl/
+    cp out/javafl/JavaAflCache.class out/full/javafl/
+    cp out/javafl/JavaAflFilter.class out/full/javafl/
+    cp out/javafl/JavaAflFilter\$*.class out/full/javafl/
+    cp out/javafl/JavaAflProbeIds.class out/full/javafl/
+    cp out/javafl/JavaAflCompareSplitter.class out/full/javafl/
+    cp out/javafl/JavaAflReport.class out/full/javafl/
+    cp out/javafl/JavaAflReport\$*.class out/full/javafl/
+    cp out/javafl/JavaAflZip.class out/full/javafl/
+    cp out/javafl/JavaAflZip\$*.class out/full/javafl/
     cd out/full/
     jar xf "$DIR"/asm-6.1.jar
 )
 # Put everything that we need into one file:
 jar -cfe "$DIR"/java-afl-instrument.jar javafl.JavaAflInstrument -C out/full .
-# Same for the dynamic instrumentation:
-jar -cfe "$DIR"/java-afl-run.jar javafl.run -C out/full .
+# Same for the dynamic instrumentation and the agent:
+jar -cfm "$DIR"/java-afl-run.jar "$DIR"/java-afl-run.mf -C out/full .
 
 # Test classes and jarfile
-javac -d out/ test/Crashing.java
-javac -d out/ test/Utils.java
-javac -d out/ test/Forking.java
-javac -d out/ test/Deferred.java
-javac -d out/ test/Persistent.java
-javac -d out/ test/Null.java
-javac -d out/ test/NoAttribute.java
+javac -cp out -d out/ test/Crashing.java
+javac -cp out -d out/ test/Utils.java
+javac -cp out -d out/ test/Forking.java
+javac -cp out -d out/ test/Deferred.java
+javac -cp out -d out/ test/Persistent.java
+javac -cp out -d out/ test/Callback.java
+javac -cp out -d out/ test/Magic.java
+javac -cp out -d out/ test/Supertypes.java
+javac -cp out -d out/ test/Exceptions.java
+javac -cp out -d out/ test/Threads.java
+mkdir -p out/generated/test
+test/large-methods.sh > out/generated/test/LargeMethods.java
+javac -cp out -d out/ out/generated/test/LargeMethods.java
+javac -cp out -d out/ test/StableIds.java
+mkdir -p out/generated/changed/test
+sed 's/return value + 1;/if (value > 1) { return value * 2; } return value + 1;/' \
+    test/StableIds.java > out/generated/changed/test/StableIds.java
+mkdir -p out/changed
+javac -cp out -d out/changed/ out/generated/changed/test/StableIds.java
+javac -cp out -d out/ test/Null.java
+javac -cp out -d out/ test/NoAttribute.java
+javac -cp out -d out/ test/Filtered.java
 (
     set -euo pipefail
     cd out
@@ -97,7 +129,9 @@ java -jar java-afl-instrument.jar \
      out/test/Forking.class \
      out/test/Deferred.class \
      out/test/Persistent.class \
-     out/test/Null.class
+     out/test/Callback.class \
+     out/test/Null.class \
+     out/test/Filtered.class
 
 java -jar java-afl-instrument.jar --custom-init \
      out/ins \
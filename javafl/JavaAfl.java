@@ -22,54 +22,708 @@ public class JavaAfl implements Thread.UncaughtExceptionHandler
     static public final String INSTRUMENTATION_MARKER = "__JAVA-AFL-INSTRUMENTED-CLASSFILE__";
 
     public void uncaughtException(Thread t, Throwable e)
+    {
+        _crash(e);
+    }
+
+    /**
+     * Reports the exception to afl-fuzz as a crash and exits.
+     */
+    static protected void _crash(Throwable e)
     {
         javafl.JavaAfl._handle_uncaught_exception();
         e.printStackTrace(System.err);
         System.exit(1);
     }
 
-    // Map size link between C code Java:
-    static private native int _get_map_size();
+    // Map size link between C code Java. The C code decides the size
+    // based on the environment, the fuzzer and the recorded size.
+    static private native int _get_map_size(int recorded_size);
+    static private native long _get_direct_map();
+    static private native long _get_cmp_map();
+
+    // Returns sun.misc.Unsafe or null if it is not available.
+    static private Object _get_unsafe()
+    {
+        try {
+            java.lang.reflect.Field field =
+                Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
     // These are fields that the instrumentation part uses to do its thing:
     public static byte map[];
+    // Probes mask their tuple indexes with this, so that classes
+    // work with any map size that is a power of two.
+    public static final int map_mask;
     public static int prev_location;
+    // Probes of --direct-map and --cmplog access memory with this,
+    // as the JIT compiler turns its calls into plain memory accesses.
+    // javac of JDK 8 warns about internal proprietary API wherever the
+    // type is named, and @SuppressWarnings can't silence that, so this
+    // line is the only place that names it. build.sh compiles this
+    // file with -XDignore.symbol.file, which leaves the warning out,
+    // and other sources are compiled against the built class.
+    static private final sun.misc.Unsafe _unsafe = (sun.misc.Unsafe)_get_unsafe();
+    // Address of the map for classes instrumented with --direct-map.
+    // This is the afl shared memory itself when running under afl.
+    static private final long _direct_map;
+    // Tell the native side whether probes write directly to the
+    // shared memory and whether any of them write to the Java map.
+    // These come from the recorded instrumentation or from the agent,
+    // so that the probes don't need to tell this on each call.
+    static private boolean _direct_map_used = false;
+    static private boolean _java_map_used = true;
+    // Classes instrumented with --dirty-tracking mark each line of
+    // the map that they write to. Only these lines then need to be
+    // copied and cleared after each execution, but only if nothing
+    // else writes to the map. Other probes and merged thread maps
+    // don't mark their lines.
+    static private boolean _map_writes_marked = false;
+    public static final int DIRTY_LINE_SHIFT = 6;
+    public static byte dirty[];
 
-    // If you change the string value of this, you also need to change
-    // the corresponding value at JavaAflInject.java file!
-    // This enables only passing 64 kilobytes of data. It is more than
-    // enough with the help of gzip compression on Linux even when
-    // there is tons of debugging data added to the resulting JNI
-    // library.
-    private final static String _jni_code = "<INJECT-JNI>";
+    // Out of line probe for methods that would grow too large with
+    // the probe code inlined.
+    static public void _log(int location)
+    {
+        map[(location ^ prev_location) & map_mask]++;
+        prev_location = location >> 1;
+    }
 
-    static {
-        java.io.File jni_target = null;
+    // Out of line probe for --dirty-tracking.
+    static public void _log_dirty(int location)
+    {
+        int index = (location ^ prev_location) & map_mask;
+        map[index]++;
+        dirty[index >> DIRTY_LINE_SHIFT] = 1;
+        prev_location = location >> 1;
+    }
+
+    // Probe for --direct-map. The JIT compiler turns this into plain
+    // memory accesses.
+    static public void _log_direct(int location)
+    {
+        if (_unsafe == null) {
+            _log(location);
+            return;
+        }
+        long address = _direct_map + ((location ^ prev_location) & map_mask);
+        _unsafe.putByte(address, (byte)(_unsafe.getByte(address) + 1));
+        prev_location = location >> 1;
+    }
+
+    // Comparison log of afl++ CmpLog, laid out as struct cmp_map of
+    // afl++ include/cmplog.h. afl-fuzz runs the program with it when
+    // it is given -c, and classes instrumented with --cmplog then
+    // record the operands of their comparisons to it. Otherwise the
+    // address is 0 and the JIT compiler drops the recording.
+    static private final long _cmp_map;
+    static public final int CMP_MAP_W = 65536;
+    static private final int CMP_MAP_H = 32;
+    static private final int CMP_MAP_RTN_H = CMP_MAP_H / 2;
+    static private final int CMP_HEADER_SIZE = 2;
+    static private final int CMP_OPERANDS_SIZE = 72;
+    static private final int CMP_FN_BYTES = 32;
+    static private final int CMP_TYPE_INS = 0;
+    static private final int CMP_TYPE_RTN = 1;
+    // Attributes of comparisons that afl++ uses to try values around
+    // the operands. Not equal is 0.
+    static public final int CMP_EQ = 1;
+    static public final int CMP_GT = 2;
+    static public final int CMP_GE = 3;
+    static public final int CMP_LT = 4;
+    static public final int CMP_LE = 5;
+
+    /**
+     * Counts a hit of the comparison in its header and returns the
+     * address of the operands for it. The header is a 16 bit field
+     * of 6 bits of hits, 5 bits of operand size - 1, 1 bit of type
+     * and 4 bits of attributes.
+     */
+    static private long _cmp_operands(int id, int type, int shape, int attribute, int hits_mask)
+    {
+        long header = _cmp_map + (long)id * CMP_HEADER_SIZE;
+        int value = _unsafe.getShort(header) & 0xffff;
+        int hits = 0;
+        if (((value >> 11) & 1) == type) {
+            hits = value & 0x3f;
+            shape = Math.max(shape, (value >> 6) & 0x1f);
+        }
+        value = ((hits + 1) & 0x3f) | (shape << 6) | (type << 11) | (attribute << 12);
+        _unsafe.putShort(header, (short)value);
+        return _cmp_map + (long)CMP_MAP_W * CMP_HEADER_SIZE
+            + ((long)id * CMP_MAP_H + (hits & hits_mask)) * CMP_OPERANDS_SIZE;
+    }
+
+    // Probe for IF_ICMP* instructions of --cmplog.
+    static public void _cmp(int v0, int v1, int attribute, int id)
+    {
+        if (_cmp_map == 0) {
+            return;
+        }
+        long operands = _cmp_operands(id, CMP_TYPE_INS, 3, attribute, CMP_MAP_H - 1);
+        _unsafe.putLong(operands, v0 & 0xffffffffL);
+        _unsafe.putLong(operands + 32, v1 & 0xffffffffL);
+    }
+
+    // Replaces LCMP instructions in --cmplog.
+    static public int _cmp_long(long v0, long v1, int id)
+    {
+        if (_cmp_map != 0) {
+            long operands = _cmp_operands(id, CMP_TYPE_INS, 7, CMP_EQ, CMP_MAP_H - 1);
+            _unsafe.putLong(operands, v0);
+            _unsafe.putLong(operands + 32, v1);
+        }
+        return Long.compare(v0, v1);
+    }
+
+    /**
+     * Probe for switch instructions of --cmplog. The keys are encoded
+     * as pairs of characters, so that they are a constant that does
+     * not need to be created on each call. Each key gets its own
+     * comparison after the given one.
+     */
+    static public void _cmp_switch(int value, String keys, int id)
+    {
+        if (_cmp_map == 0) {
+            return;
+        }
+        for (int i = 0; i < keys.length() / 2; i++) {
+            int key = (keys.charAt(2 * i) << 16) | keys.charAt(2 * i + 1);
+            _cmp(value, key, CMP_EQ, (id + i) & (CMP_MAP_W - 1));
+        }
+    }
+
+    static private byte[] _cmp_bytes(Object value)
+    {
+        if (value instanceof byte[]) {
+            return (byte[])value;
+        }
+        if (value instanceof CharSequence) {
+            return value.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    // Probe for String comparisons and Arrays.equals() of --cmplog.
+    // Strings are logged as the UTF-8 bytes they were likely read as.
+    static public void _cmp_objects(Object v0, Object v1, int id)
+    {
+        if (_cmp_map == 0) {
+            return;
+        }
+        byte[] bytes0 = _cmp_bytes(v0);
+        byte[] bytes1 = _cmp_bytes(v1);
+        if (bytes0 == null || bytes1 == null) {
+            return;
+        }
+        int length0 = Math.min(bytes0.length, CMP_FN_BYTES);
+        int length1 = Math.min(bytes1.length, CMP_FN_BYTES);
+        int length = Math.max(length0, length1);
+        if (length == 0) {
+            return;
+        }
+        // struct cmpfn_operands is two 32 byte arrays and their
+        // lengths in the space of struct cmp_operands.
+        long operands = _cmp_operands(
+            id, CMP_TYPE_RTN, length - 1, 0, CMP_MAP_RTN_H - 1);
+        for (int i = 0; i < CMP_FN_BYTES; i++) {
+            _unsafe.putByte(operands + i, i < length0 ? bytes0[i] : 0);
+            _unsafe.putByte(operands + CMP_FN_BYTES + i, i < length1 ? bytes1[i] : 0);
+        }
+        _unsafe.putByte(operands + 2 * CMP_FN_BYTES, (byte)length0);
+        _unsafe.putByte(operands + 2 * CMP_FN_BYTES + 1, (byte)length1);
+    }
+
+    /**
+     * Coverage state of one thread in the thread aware mode. Each
+     * thread writes to its own map that gets merged to the shared map
+     * before it is sent to afl. The map is as large as the shared one.
+     *
+     * Fields that other threads read are final, as states are shared
+     * through _states_by_id without synchronization.
+     */
+    static public class ThreadState
+    {
+        public final byte map[] = new byte[JavaAfl.map.length];
+        // Only the owning thread uses this.
+        public int prev_location;
+        // The owning thread sets this when it enters an instrumented
+        // method, and the merging thread clears it before merging the
+        // map, so only the maps of threads that have run since the
+        // previous merge need to be merged.
+        private volatile boolean _touched = false;
+        private final java.lang.ref.WeakReference<Thread> _thread =
+            new java.lang.ref.WeakReference<Thread>(Thread.currentThread());
+    }
+
+    static private class ThreadStates extends ThreadLocal<ThreadState>
+    {
+        @Override
+        protected ThreadState initialValue()
+        {
+            ThreadState state = new ThreadState();
+            synchronized (_all_thread_states) {
+                _all_thread_states.add(state);
+            }
+            return state;
+        }
+    }
+
+    static private final java.util.ArrayList<ThreadState> _all_thread_states =
+        new java.util.ArrayList<ThreadState>();
+    static private final ThreadStates _thread_states = new ThreadStates();
+    // States by the lowest bits of the thread id. A ThreadLocal lookup
+    // is slow in forked children that run interpreted. A thread only
+    // writes here when its slot has no state or the state of another
+    // thread, so threads that run at the same time don't keep writing
+    // to shared memory.
+    static private final ThreadState[] _states_by_id = new ThreadState[1024];
+
+    /**
+     * Returns the state of the current thread. Instrumented methods
+     * call this on entry and keep the state in a local variable.
+     */
+    static public ThreadState _thread_state()
+    {
+        Thread thread = Thread.currentThread();
+        int slot = (int)thread.getId() & (_states_by_id.length - 1);
+        ThreadState state = _states_by_id[slot];
+        if (state == null || state._thread.get() != thread) {
+            state = _thread_states.get();
+            _states_by_id[slot] = state;
+        }
+        if (!state._touched) {
+            state._touched = true;
+        }
+        return state;
+    }
+
+    static public void _log_thread(int location)
+    {
+        ThreadState state = _thread_state();
+        state.map[(location ^ state.prev_location) & map_mask]++;
+        state.prev_location = location >> 1;
+    }
+
+    /**
+     * Adds the maps of the current thread and of threads that have
+     * entered an instrumented method since the previous merge to the
+     * shared map and clears them.
+     *
+     * Other threads keep running during the merge. Edges that they
+     * write after their map has been merged are merged with a later
+     * execution, the next one after the thread enters another
+     * instrumented method. An edge that a thread writes while its map
+     * is being merged is counted in this execution. As probes
+     * increment the map without atomic operations, the count that the
+     * probe read before the merge can then also be written back and
+     * counted again in a later execution.
+     */
+    static private void _merge_thread_maps()
+    {
+        Thread current = Thread.currentThread();
+        synchronized (_all_thread_states) {
+            java.util.Iterator<ThreadState> states = _all_thread_states.iterator();
+            while (states.hasNext()) {
+                ThreadState state = states.next();
+                Thread thread = state._thread.get();
+                if (state._touched || thread == current) {
+                    state._touched = false;
+                    _merge_map(map, state.map);
+                }
+                if (thread == null) {
+                    states.remove();
+                }
+            }
+        }
+    }
+
+    static private void _clear_thread_maps()
+    {
+        synchronized (_all_thread_states) {
+            for (ThreadState state : _all_thread_states) {
+                java.util.Arrays.fill(state.map, (byte)0);
+            }
+        }
+    }
+
+    // If you change these values, you also need to change the
+    // corresponding values at JavaAflInject.java file!
+    // JavaAflInject replaces the body of _jni_code() with the gzip
+    // compressed JNI library split into string constants, as each
+    // constant can only hold 64 kilobytes. The other values are
+    // methods so that the compiler does not combine them with other
+    // constants.
+    static private String _jni_code_sha256()
+    {
+        return "<INJECT-JNI-SHA256>";
+    }
+
+    static private String[] _jni_code()
+    {
+        return new String[] {"<INJECT-JNI>"};
+    }
+
+    static private byte[] _jni_library() throws java.io.IOException
+    {
+        java.io.ByteArrayOutputStream compressed =
+            new java.io.ByteArrayOutputStream();
+        for (String part : _jni_code()) {
+            compressed.write(part.getBytes("ISO-8859-1"));
+        }
+        java.util.zip.GZIPInputStream input = new java.util.zip.GZIPInputStream(
+            new java.io.ByteArrayInputStream(compressed.toByteArray()));
+        java.io.ByteArrayOutputStream library =
+            new java.io.ByteArrayOutputStream();
+        byte buffer[] = new byte[4096];
+        int read = input.read(buffer, 0, buffer.length);
+        while (read > 0) {
+            library.write(buffer, 0, read);
+            read = input.read(buffer, 0, buffer.length);
+        }
+        return library.toByteArray();
+    }
+
+    /**
+     * Tells if only the current user can change the file or
+     * directory, so that a library that is loaded from there can be
+     * trusted. Symbolic links are not followed.
+     */
+    static private boolean _is_private(java.io.File file)
+    {
         try {
-            byte jni_code_compressed[] = _jni_code.getBytes("ISO-8859-1");
-            java.util.zip.GZIPInputStream input = new java.util.zip.GZIPInputStream(
-                new java.io.ByteArrayInputStream(jni_code_compressed));
-            jni_target = java.io.File.createTempFile("libjava-afl-", ".so");
-            java.io.FileOutputStream output = new java.io.FileOutputStream(jni_target);
-            byte buffer[] = new byte[4096];
-            int read = input.read(buffer, 0, buffer.length);
-            while (read > 0) {
-                output.write(buffer, 0, read);
-                read = input.read(buffer, 0, buffer.length);
+            java.nio.file.Path path = file.toPath();
+            java.nio.file.attribute.PosixFileAttributes attributes =
+                java.nio.file.Files.readAttributes(
+                    path,
+                    java.nio.file.attribute.PosixFileAttributes.class,
+                    java.nio.file.LinkOption.NOFOLLOW_LINKS);
+            java.nio.file.attribute.UserPrincipal user =
+                path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+            java.util.Set<java.nio.file.attribute.PosixFilePermission> permissions =
+                attributes.permissions();
+            return attributes.owner().equals(user)
+                && !attributes.isSymbolicLink()
+                && !permissions.contains(
+                    java.nio.file.attribute.PosixFilePermission.GROUP_WRITE)
+                && !permissions.contains(
+                    java.nio.file.attribute.PosixFilePermission.OTHERS_WRITE);
+        } catch (java.io.IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    // Size and modification time of a library whose SHA-256 has been
+    // checked, for the record next to it.
+    static private String _verified_record(java.io.File library)
+    {
+        return library.length() + " " + library.lastModified();
+    }
+
+    static private void _write_private_file(java.io.File file, byte[] data)
+        throws java.io.IOException
+    {
+        java.io.File directory = file.getParentFile();
+        // Temporary files are only readable by their owner. Renaming
+        // is atomic, so other processes see either a complete file or
+        // nothing.
+        java.io.File temporary = java.nio.file.Files.createTempFile(
+            directory.toPath(), "." + file.getName() + "-", ".tmp").toFile();
+        try {
+            java.io.FileOutputStream output =
+                new java.io.FileOutputStream(temporary);
+            try {
+                output.write(data);
+            } finally {
+                output.close();
+            }
+            if (!temporary.renameTo(file)) {
+                throw new java.io.IOException("Could not rename " + temporary);
             }
-            System.load(jni_target.getAbsolutePath());
-        } catch (java.io.IOException e) {
-            throw new RuntimeException(e);
         } finally {
-            if (jni_target != null) {
-                // We need to explicitly delete a file here instead of
-                // using File.deleteOnExit(), as the JNI
-                // instrumentation can exit from JVM without running
-                // exit handlers.
-                jni_target.delete();
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Checks that a previously extracted library is the embedded one.
+     * Initializing Java's cryptographic providers for SHA-256 takes
+     * tens of milliseconds, so the size and modification time of a
+     * checked library are recorded next to it, and a library that
+     * still matches them is not checked again.
+     */
+    static private boolean _is_valid_jni_library(java.io.File library)
+    {
+        java.io.File record = new java.io.File(library.getPath() + ".verified");
+        String expected = _verified_record(library);
+        try {
+            if (record.length() == expected.length() && _is_private(record)) {
+                byte data[] = new byte[expected.length()];
+                java.io.DataInputStream input = new java.io.DataInputStream(
+                    new java.io.FileInputStream(record));
+                try {
+                    input.readFully(data);
+                } finally {
+                    input.close();
+                }
+                if (new String(data, "ISO-8859-1").equals(expected)) {
+                    return true;
+                }
+            }
+            java.security.MessageDigest digest =
+                java.security.MessageDigest.getInstance("SHA-256");
+            java.io.FileInputStream input = new java.io.FileInputStream(library);
+            try {
+                byte buffer[] = new byte[65536];
+                int read = input.read(buffer);
+                while (read > 0) {
+                    digest.update(buffer, 0, read);
+                    read = input.read(buffer);
+                }
+            } finally {
+                input.close();
             }
+            StringBuilder hash = new StringBuilder();
+            for (byte value : digest.digest()) {
+                hash.append(String.format("%02x", value & 0xff));
+            }
+            if (!hash.toString().equals(_jni_code_sha256())) {
+                return false;
+            }
+            _write_private_file(record, expected.getBytes("ISO-8859-1"));
+            return true;
+        } catch (java.io.IOException | java.security.NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    static private java.io.File _jni_cache_directory()
+    {
+        String directory = System.getenv("JAVA_AFL_LIBRARY_DIR");
+        if (directory != null) {
+            return new java.io.File(directory);
+        }
+        String cache_home = System.getenv("XDG_CACHE_HOME");
+        if (cache_home == null) {
+            cache_home = new java.io.File(
+                System.getProperty("user.home"), ".cache").getPath();
+        }
+        return new java.io.File(cache_home, "java-afl");
+    }
+
+    /**
+     * Returns the JNI library from the cache directory and extracts
+     * it there first if needed. Returns null if that fails, or if the
+     * directory is not owned by the current user or others can write
+     * to it.
+     */
+    static private java.io.File _cached_jni_library()
+    {
+        java.io.File directory = _jni_cache_directory();
+        java.io.File library = new java.io.File(
+            directory, "libjava-afl-" + _jni_code_sha256() + ".so");
+        try {
+            if (!directory.exists()) {
+                java.nio.file.Files.createDirectories(
+                    directory.toPath(),
+                    java.nio.file.attribute.PosixFilePermissions.asFileAttribute(
+                        java.nio.file.attribute.PosixFilePermissions.fromString(
+                            "rwx------")));
+            }
+            if (!_is_private(directory)) {
+                return null;
+            }
+            if (library.isFile()
+                && _is_private(library)
+                && _is_valid_jni_library(library)) {
+                return library;
+            }
+            _write_private_file(library, _jni_library());
+            // This library came from this class, so it needs no check.
+            _write_private_file(
+                new java.io.File(library.getPath() + ".verified"),
+                _verified_record(library).getBytes("ISO-8859-1"));
+            return library;
+        } catch (java.io.IOException | UnsupportedOperationException e) {
+            // Fall back to extracting a temporary file.
+            return null;
+        }
+    }
+
+    // The instrumenter writes this next to the classes that it
+    // instruments with the number of locations that they have.
+    static public final String MAP_SIZE_RESOURCE = "javafl/map-size.properties";
+    // Map entries per location keep most of the edges apart.
+    static private final int MAP_ENTRIES_PER_LOCATION = 16;
+    // Limits of the map size in JavaAfl.c.
+    static private final int MIN_MAP_SIZE = 64;
+    static private final int MAX_MAP_SIZE = 1 << 23;
+
+    // Sums of the recorded instrumentation of all instrumented jars
+    // and directories.
+    static private long _recorded_locations = 0;
+    static private long _recorded_direct_map_locations = 0;
+    static private long _recorded_dirty_tracking_locations = 0;
+
+    /**
+     * Returns the map size that the recorded locations of all
+     * instrumented jars and directories need, or 0 if there are none.
+     * A map larger than the range of locations that the classes were
+     * instrumented with would not get any more of them apart.
+     */
+    static private int _recorded_map_size()
+    {
+        long locations = 0;
+        long direct_map_locations = 0;
+        long dirty_tracking_locations = 0;
+        long location_range = 0;
+        long min_map_size = 0;
+        try {
+            java.util.Enumeration<java.net.URL> resources =
+                ClassLoader.getSystemResources(MAP_SIZE_RESOURCE);
+            while (resources.hasMoreElements()) {
+                java.util.Properties properties = new java.util.Properties();
+                java.io.InputStream input = resources.nextElement().openStream();
+                try {
+                    properties.load(input);
+                } finally {
+                    input.close();
+                }
+                locations += Long.parseLong(
+                    properties.getProperty("locations", "0"));
+                direct_map_locations += Long.parseLong(
+                    properties.getProperty("direct-map-locations", "0"));
+                dirty_tracking_locations += Long.parseLong(
+                    properties.getProperty("dirty-tracking-locations", "0"));
+                location_range = Math.max(
+                    location_range,
+                    Long.parseLong(properties.getProperty("location-range", "0")));
+                min_map_size = Math.max(
+                    min_map_size,
+                    Long.parseLong(properties.getProperty("min-map-size", "0")));
+            }
+        } catch (java.io.IOException | NumberFormatException e) {
+            return 0;
+        }
+        _recorded_locations = locations;
+        _recorded_direct_map_locations = direct_map_locations;
+        _recorded_dirty_tracking_locations = dirty_tracking_locations;
+        return needed_map_size(locations, location_range, min_map_size);
+    }
+
+    /**
+     * Returns the map size that the given sums of map size records
+     * need, or 0 if there are no locations.
+     */
+    static int needed_map_size(
+        long locations, long location_range, long min_map_size)
+    {
+        long size = locations * MAP_ENTRIES_PER_LOCATION;
+        if (location_range > 0) {
+            size = Math.min(size, location_range);
+        }
+        // Locations of --stable-ids avoid collisions in a map of
+        // this size.
+        size = Math.max(size, min_map_size);
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the map size that _get_map_size() picks for the given
+     * recorded size when neither JAVA_AFL_MAP_SIZE nor the fuzzer asks
+     * for another one. Without a recorded size this is the default
+     * size, like the map of this JVM is when nothing is recorded.
+     */
+    static int map_size_for(int recorded_size)
+    {
+        if (recorded_size == 0) {
+            return map.length;
+        }
+        int size = MIN_MAP_SIZE;
+        while (size < recorded_size && size < MAX_MAP_SIZE) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    static {
+        java.io.File jni_target = _cached_jni_library();
+        if (jni_target != null) {
+            System.load(jni_target.getAbsolutePath());
+        } else {
+            try {
+                jni_target = java.io.File.createTempFile("libjava-afl-", ".so");
+                java.io.FileOutputStream output =
+                    new java.io.FileOutputStream(jni_target);
+                try {
+                    output.write(_jni_library());
+                } finally {
+                    output.close();
+                }
+                System.load(jni_target.getAbsolutePath());
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (jni_target != null) {
+                    // We need to explicitly delete a file here instead of
+                    // using File.deleteOnExit(), as the JNI
+                    // instrumentation can exit from JVM without running
+                    // exit handlers.
+                    jni_target.delete();
+                }
+            }
+        }
+        map = new byte[_get_map_size(_recorded_map_size())];
+        map_mask = map.length - 1;
+        dirty = new byte[map.length >> DIRTY_LINE_SHIFT];
+        long direct_map = _get_direct_map();
+        if (direct_map == 0 && _unsafe != null) {
+            direct_map = _unsafe.allocateMemory(map.length);
+            _unsafe.setMemory(direct_map, map.length, (byte)0);
+        }
+        _direct_map = direct_map;
+        _cmp_map = _unsafe != null ? _get_cmp_map() : 0;
+        // Without a record, classes could have been instrumented in
+        // any way. Probes of --direct-map write to the Java map when
+        // there is no Unsafe.
+        _direct_map_used = _recorded_direct_map_locations > 0
+            || _recorded_locations == 0;
+        _java_map_used = _recorded_locations > _recorded_direct_map_locations
+            || _recorded_locations == 0
+            || _unsafe == null;
+        _map_writes_marked = _recorded_locations > 0
+            && _recorded_locations == _recorded_direct_map_locations
+                + _recorded_dirty_tracking_locations
+            && (_unsafe != null || _recorded_direct_map_locations == 0);
+    }
+
+    /**
+     * Tells what kind of probes classes that the agent instruments
+     * have. Needs to be called before they run.
+     */
+    static public void _add_agent_probes(boolean direct_map, boolean dirty_tracking)
+    {
+        // Without a record, all probes come from the agent.
+        if (_recorded_locations == 0) {
+            _direct_map_used = false;
+            _java_map_used = _unsafe == null;
+            _map_writes_marked = true;
+        }
+        if (direct_map) {
+            _direct_map_used = true;
+        } else {
+            _java_map_used = true;
+        }
+        if (direct_map ? _unsafe == null : !dirty_tracking) {
+            _map_writes_marked = false;
         }
-        map = new byte[_get_map_size()];
     }
 
     static public void _before_main()
@@ -79,7 +733,26 @@ public class JavaAfl implements Thread.UncaughtExceptionHandler
 
     static protected void _init(boolean is_persistent)
     {
-        _init_impl(is_persistent);
+        _init(is_persistent, false);
+    }
+
+    /**
+     * Initializes fuzzing. A program that reads its test cases from
+     * _get_shared_input() can get them in shared memory from afl++.
+     */
+    static protected void _init(boolean is_persistent, boolean reads_shared_input)
+    {
+        // The harness is being run again by the warm-up.
+        if (Warmup.is_running()) {
+            return;
+        }
+        Warmup.run();
+        // Before the fork server starts, so that children share it.
+        Telemetry.init();
+        _init_impl(is_persistent, reads_shared_input);
+        Telemetry.begin();
+        // Same as what happens to the shared map on initialization.
+        _clear_thread_maps();
         JavaAfl handler = new JavaAfl();
         Thread.setDefaultUncaughtExceptionHandler(handler);
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -91,9 +764,55 @@ public class JavaAfl implements Thread.UncaughtExceptionHandler
         });
     }
 
-    static protected native void _init_impl(boolean is_persistent);
-    static public native void _handle_uncaught_exception();
-    static public native void _after_main();
+    static public void _handle_uncaught_exception()
+    {
+        _merge_thread_maps();
+        Telemetry.crash();
+        _handle_uncaught_exception_impl();
+    }
+
+    static public void _after_main()
+    {
+        if (Warmup.is_running()) {
+            return;
+        }
+        _merge_thread_maps();
+        Telemetry.end();
+        _after_main_impl();
+    }
+
+    /**
+     * Sends the map of an iteration of a persistent mode loop. The
+     * next one begins after this returns.
+     */
+    static protected void _send_map()
+    {
+        _merge_thread_maps();
+        Telemetry.end();
+        _send_map_impl();
+    }
+
+    // Adds source map values to target map with saturation and
+    // zeroes the source map. Forked fuzzing processes don't have JIT
+    // compiler threads, so this would be really slow in Java.
+    static private native void _merge_map(byte[] target, byte[] source);
+    // Number of map entries that are not zero.
+    static native int _count_map_entries(byte[] map);
+    // Native side of javafl.Telemetry, as forked children run the
+    // counting interpreted.
+    static native long _get_buffer_address(java.nio.Buffer buffer);
+    static native boolean _count_execution(long stats, long nanos, long now);
+
+    static protected native void _init_impl(
+        boolean is_persistent, boolean reads_shared_input);
+    // Shared memory with the length of the current test case followed
+    // by its data, or null if test cases don't come this way.
+    static protected native java.nio.ByteBuffer _get_shared_input();
+    // Copies the current test case from the shared memory and returns
+    // its length, or the length of target if it does not fit.
+    static protected native int _copy_shared_input(byte[] target);
+    static private native void _handle_uncaught_exception_impl();
+    static private native void _after_main_impl();
 
-    static protected native void _send_map();
+    static private native void _send_map_impl();
 }
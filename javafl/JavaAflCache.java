@@ -0,0 +1,275 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of instrumented class files.
+ *
+ * Entries are keyed by the SHA-256 of the original class file data,
+ * instrumentation options and the instrumenter itself, or by cheaper
+ * checksums of the same for classes loaded by javafl.run. Each entry
+ * also holds the original class file data, and a hit is only used if
+ * that is the class file being looked up. Only deterministic
+ * instrumentation results are cached, as the default mode is supposed
+ * to produce different results on each run.
+ */
+public class JavaAflCache
+{
+    // Increase this when the cache file format changes.
+    static private final int VERSION = 2;
+    static private volatile String _instrumenter_checksum = null;
+
+    private File _directory;
+
+    public JavaAflCache(File directory)
+    {
+        _directory = directory;
+    }
+
+    File directory()
+    {
+        return _directory;
+    }
+
+    static private MessageDigest _new_digest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static private final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // String.format() would be simpler, but javafl.run calls this for
+    // every class that it loads while the JVM is still interpreting.
+    static private String _to_hex(byte[] data)
+    {
+        char[] result = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            result[i * 2] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * Returns a checksum of the jar file that this class was loaded
+     * from, so that upgrading java-afl invalidates old cache entries.
+     * This is CRC-32, as javafl.run needs it at every JVM start and
+     * getting a MessageDigest alone takes tens of milliseconds then.
+     * Class loading threads only synchronize until it is known.
+     */
+    static private String _instrumenter_checksum()
+    {
+        String result = _instrumenter_checksum;
+        if (result != null) {
+            return result;
+        }
+        synchronized (JavaAflCache.class) {
+            if (_instrumenter_checksum == null) {
+                _instrumenter_checksum = _compute_instrumenter_checksum();
+            }
+            return _instrumenter_checksum;
+        }
+    }
+
+    static private String _compute_instrumenter_checksum()
+    {
+        String result = "unknown";
+        try {
+            File location = new File(
+                JavaAflCache.class.getProtectionDomain().getCodeSource()
+                .getLocation().toURI());
+            if (location.isFile()) {
+                CRC32 checksum = new CRC32();
+                FileInputStream input = new FileInputStream(location);
+                try {
+                    byte[] buffer = new byte[65536];
+                    int read = input.read(buffer);
+                    while (read > 0) {
+                        checksum.update(buffer, 0, read);
+                        read = input.read(buffer);
+                    }
+                } finally {
+                    input.close();
+                }
+                result =
+                    location.length() + "-" + Long.toHexString(checksum.getValue());
+            }
+        } catch (Exception e) {
+            // Running from a class directory or from some other
+            // unusual location. The cache version is all we have.
+        }
+        return result;
+    }
+
+    static private byte[] _key_prefix(
+        String filename, JavaAflInstrument.InstrumentationOptions options)
+    {
+        try {
+            return (VERSION + ":" + _instrumenter_checksum() + ":"
+                    + options.cache_key() + ":" + filename + ":").getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static boolean is_cacheable(
+        String filename, JavaAflInstrument.InstrumentationOptions options)
+    {
+        // Locations that were allocated knowing all input files
+        // depend on more than the class itself.
+        return options.deterministic
+            && filename.endsWith(".class")
+            && (options.probe_ids == null || !options.probe_ids.is_allocated());
+    }
+
+    String key(byte[] input, JavaAflInstrument.InstrumentationOptions options)
+    {
+        MessageDigest digest = _new_digest();
+        digest.update(_key_prefix("", options));
+        digest.update(input);
+        return _to_hex(digest.digest());
+    }
+
+    /**
+     * Returns a key that is cheaper to compute than key(). javafl.run
+     * computes keys for every class that it loads while the JVM is
+     * still interpreting, and SHA-256 took most of the loading time
+     * then. CRC-32 and Adler-32 are computed in native code, and
+     * together with the class file name and length they rarely collide
+     * between versions of the same class. get() compares the class
+     * file data of the entry anyway, so a collision only means that
+     * the class is instrumented again. These keys are shorter than
+     * SHA-256 keys, so the two kinds never mix.
+     */
+    String quick_key(
+        byte[] input,
+        String filename,
+        JavaAflInstrument.InstrumentationOptions options)
+    {
+        CRC32 prefix = new CRC32();
+        prefix.update(_key_prefix(filename, options));
+        CRC32 crc = new CRC32();
+        crc.update(input);
+        Adler32 adler = new Adler32();
+        adler.update(input);
+        return _to_hex(java.nio.ByteBuffer.allocate(16)
+                       .putInt((int)crc.getValue())
+                       .putInt((int)adler.getValue())
+                       .putInt(input.length)
+                       .putInt((int)prefix.getValue())
+                       .array());
+    }
+
+    private File _entry_file(String key)
+    {
+        return new File(
+            new File(_directory, key.substring(0, 2)), key + ".class");
+    }
+
+    /**
+     * Returns the cached instrumentation result of input, or null if
+     * the entry for key is missing or was made from some other input.
+     */
+    JavaAflInstrument.InstrumentedClass get(String key, byte[] input)
+    {
+        File entry = _entry_file(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream entry_input = new DataInputStream(
+                new FileInputStream(entry));
+            try {
+                byte[] original = new byte[entry_input.readInt()];
+                if (original.length != input.length) {
+                    return null;
+                }
+                entry_input.readFully(original);
+                if (!java.util.Arrays.equals(original, input)) {
+                    return null;
+                }
+                String directory = entry_input.readUTF();
+                int locations = entry_input.readInt();
+                byte[] data = new byte[entry_input.readInt()];
+                entry_input.readFully(data);
+                return new JavaAflInstrument.InstrumentedClass(
+                    directory, data, locations);
+            } finally {
+                entry_input.close();
+            }
+        } catch (IOException e) {
+            System.err.println(
+                "Ignoring broken cache entry " + entry + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void put(
+        String key,
+        byte[] input,
+        JavaAflInstrument.InstrumentedClass instrumented)
+    {
+        File entry = _entry_file(key);
+        File entry_directory = entry.getParentFile();
+        if (!entry_directory.exists()) {
+            entry_directory.mkdirs();
+        }
+        File temporary = null;
+        try {
+            // Write to a temporary file first so that concurrent
+            // instrumentation processes never see partial entries.
+            temporary = File.createTempFile(
+                ".java-afl-cache-", ".tmp", entry_directory);
+            DataOutputStream output = new DataOutputStream(
+                new FileOutputStream(temporary));
+            try {
+                output.writeInt(input.length);
+                output.write(input);
+                output.writeUTF(instrumented.directory);
+                output.writeInt(instrumented.locations);
+                output.writeInt(instrumented.data.length);
+                output.write(instrumented.data);
+            } finally {
+                output.close();
+            }
+            if (!temporary.renameTo(entry)) {
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            if (temporary != null) {
+                temporary.delete();
+            }
+            System.err.println(
+                "Unable to write cache entry " + entry + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,501 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.util.Arrays;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Splits comparisons against wide constants into comparisons of one
+ * byte or character at a time, like the laf-intel passes of afl's
+ * LLVM mode do. Each matching byte then takes a new edge, so that afl
+ * gets feedback on its way to a magic value instead of having to
+ * guess all of it at once. This covers int and long equality, switch
+ * statements with keys that don't fit in a byte and String.equals()
+ * with a string constant.
+ *
+ * This sits in front of both the block analysis and the
+ * instrumentation, so that the new comparisons get probes like any
+ * other code. The new branch targets need frames to be computed.
+ * Both passes make the same decisions, as they only depend on the
+ * method code.
+ */
+public class JavaAflCompareSplitter extends MethodVisitor
+{
+    // Rough upper bound of the code that splitting can add to one
+    // method, including the probes of the new blocks. Splitting
+    // stops there, so that the probes of the rest of the method
+    // still fit in the 64 kilobyte limit.
+    static final int MAX_SPLIT_SIZE = 16384;
+    // Sizes of the code added per split byte, character and switch
+    // node, including a probe.
+    static private final int BYTE_SIZE = 40;
+    static private final int CHARACTER_SIZE = 80;
+    static private final int SWITCH_NODE_SIZE = 60;
+    static private final int SWITCH_KEY_SIZE = 45;
+
+    // What the previous instruction pushed, as far as splitting is
+    // concerned.
+    static private final int OTHER = 0;
+    static private final int WIDE_INT = 1;
+    static private final int WIDE_LONG = 2;
+    static private final int STRING = 3;
+
+    private int _previous = OTHER;
+    private String _string_constant = null;
+    // LCMP after a wide long constant waits for the instruction that
+    // uses its result.
+    private boolean _pending_lcmp = false;
+    private boolean _disabled = false;
+    private int _split_size = 0;
+
+    public JavaAflCompareSplitter(MethodVisitor mv_)
+    {
+        super(Opcodes.ASM6, mv_);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+    {
+        if (desc.equals(JavaAflInstrument.NO_INSTRUMENT)) {
+            _disabled = true;
+        }
+        return super.visitAnnotation(desc, visible);
+    }
+
+    static private boolean _is_wide(long value)
+    {
+        return value < -128 || value > 255;
+    }
+
+    private boolean _reserve(int size)
+    {
+        if (_disabled || _split_size + size > MAX_SPLIT_SIZE) {
+            return false;
+        }
+        _split_size += size;
+        return true;
+    }
+
+    /**
+     * Emits the LCMP that was held back, if any, and forgets the
+     * previous instruction.
+     */
+    private void _flush()
+    {
+        if (_pending_lcmp) {
+            _pending_lcmp = false;
+            super.visitInsn(LCMP);
+        }
+        _previous = OTHER;
+    }
+
+    private void _push_int(int value)
+    {
+        if (value >= -1 && value <= 5) {
+            super.visitInsn(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            super.visitIntInsn(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            super.visitIntInsn(SIPUSH, value);
+        } else {
+            super.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Replaces IF_ICMPEQ or IF_ICMPNE with checks of each byte of the
+     * exclusive or of the values, most significant byte first.
+     */
+    private void _split_int(int opcode, Label label)
+    {
+        Label differs = new Label();
+        Label done = new Label();
+        // = value1 ^ value2
+        super.visitInsn(IXOR);
+        for (int shift = 24; shift > 0; shift -= 8) {
+            super.visitInsn(DUP);
+            super.visitLdcInsn(0xff << shift);
+            super.visitInsn(IAND);
+            super.visitJumpInsn(IFNE, differs);
+        }
+        _push_int(0xff);
+        super.visitInsn(IAND);
+        super.visitJumpInsn(opcode == IF_ICMPEQ ? IFEQ : IFNE, label);
+        super.visitJumpInsn(GOTO, done);
+        super.visitLabel(differs);
+        super.visitInsn(POP);
+        if (opcode == IF_ICMPNE) {
+            super.visitJumpInsn(GOTO, label);
+        }
+        super.visitLabel(done);
+    }
+
+    /**
+     * Replaces LCMP followed by IFEQ or IFNE in the same way.
+     */
+    private void _split_long(int opcode, Label label)
+    {
+        Label differs = new Label();
+        Label done = new Label();
+        // = value1 ^ value2
+        super.visitInsn(LXOR);
+        for (int shift = 56; shift > 0; shift -= 8) {
+            super.visitInsn(DUP2);
+            super.visitLdcInsn(0xffL << shift);
+            super.visitInsn(LAND);
+            super.visitInsn(LCONST_0);
+            super.visitInsn(LCMP);
+            super.visitJumpInsn(IFNE, differs);
+        }
+        super.visitLdcInsn(0xffL);
+        super.visitInsn(LAND);
+        super.visitInsn(LCONST_0);
+        super.visitInsn(LCMP);
+        super.visitJumpInsn(opcode, label);
+        super.visitJumpInsn(GOTO, done);
+        super.visitLabel(differs);
+        super.visitInsn(POP2);
+        if (opcode == IFNE) {
+            super.visitJumpInsn(GOTO, label);
+        }
+        super.visitLabel(done);
+    }
+
+    /**
+     * Replaces String.equals() of a string constant with comparisons
+     * of each character. The constant is on the top of the stack and
+     * the string to compare below it.
+     */
+    private void _split_string(String constant)
+    {
+        Label differs = new Label();
+        Label done = new Label();
+        super.visitInsn(POP);
+        for (int i = 0; i < constant.length(); i++) {
+            super.visitInsn(DUP);
+            super.visitMethodInsn(
+                INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+            _push_int(i);
+            super.visitJumpInsn(IF_ICMPLE, differs);
+            super.visitInsn(DUP);
+            _push_int(i);
+            super.visitMethodInsn(
+                INVOKEVIRTUAL, "java/lang/String", "charAt", "(I)C", false);
+            _push_int(constant.charAt(i));
+            super.visitJumpInsn(IF_ICMPNE, differs);
+        }
+        super.visitInsn(DUP);
+        super.visitMethodInsn(
+            INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+        _push_int(constant.length());
+        super.visitJumpInsn(IF_ICMPNE, differs);
+        super.visitInsn(POP);
+        super.visitInsn(ICONST_1);
+        super.visitJumpInsn(GOTO, done);
+        super.visitLabel(differs);
+        super.visitInsn(POP);
+        super.visitInsn(ICONST_0);
+        super.visitLabel(done);
+    }
+
+    /**
+     * Returns the number of nodes in the tree of switch_bytes() for
+     * the given keys, sorted as unsigned values.
+     */
+    static private int _switch_nodes(int[] keys)
+    {
+        int nodes = 1;
+        for (int shift = 24; shift > 0; shift -= 8) {
+            for (int i = 0; i < keys.length; i++) {
+                if (i == 0 || (keys[i] >>> shift) != (keys[i - 1] >>> shift)) {
+                    nodes++;
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Emits a tree of lookupswitches on one byte of the switch value
+     * at a time for keys[from, to). These keys are sorted as unsigned
+     * values and have the same bytes above the given shift.
+     */
+    private void _switch_bytes(
+        int[] keys, Label[] labels, int from, int to, int shift, Label no_match)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || (keys[i] >>> shift) != (keys[i - 1] >>> shift)) {
+                count++;
+            }
+        }
+        int[] values = new int[count];
+        Label[] children = new Label[count];
+        int[] starts = new int[count + 1];
+        count = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || (keys[i] >>> shift) != (keys[i - 1] >>> shift)) {
+                values[count] = (keys[i] >>> shift) & 0xff;
+                children[count] = new Label();
+                starts[count] = i;
+                count++;
+            }
+        }
+        starts[count] = to;
+        super.visitInsn(DUP);
+        if (shift > 0) {
+            _push_int(shift);
+            super.visitInsn(IUSHR);
+        }
+        _push_int(0xff);
+        super.visitInsn(IAND);
+        super.visitLookupSwitchInsn(no_match, values, children);
+        for (int i = 0; i < count; i++) {
+            super.visitLabel(children[i]);
+            if (shift == 0) {
+                super.visitInsn(POP);
+                super.visitJumpInsn(GOTO, labels[starts[i]]);
+            } else {
+                _switch_bytes(keys, labels, starts[i], starts[i + 1], shift - 8, no_match);
+            }
+        }
+    }
+
+    /**
+     * Splits a switch whose keys don't all fit in a byte. Returns
+     * false if the switch needs to be left as it is.
+     */
+    private boolean _split_switch(int[] switch_keys, Label[] switch_labels, Label dflt)
+    {
+        boolean wide = false;
+        for (int key : switch_keys) {
+            wide |= _is_wide(key);
+        }
+        if (!wide || _disabled) {
+            return false;
+        }
+        // Keys that share their upper bytes need to be next to each
+        // other.
+        Integer[] order = new Integer[switch_keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compareUnsigned(switch_keys[a], switch_keys[b]));
+        int[] keys = new int[order.length];
+        Label[] labels = new Label[order.length];
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = switch_keys[order[i]];
+            labels[i] = switch_labels[order[i]];
+        }
+        int size = _switch_nodes(keys) * SWITCH_NODE_SIZE + keys.length * SWITCH_KEY_SIZE;
+        if (!_reserve(size)) {
+            return false;
+        }
+        Label no_match = new Label();
+        _switch_bytes(keys, labels, 0, keys.length, 24, no_match);
+        super.visitLabel(no_match);
+        super.visitInsn(POP);
+        super.visitJumpInsn(GOTO, dflt);
+        return true;
+    }
+
+    @Override
+    public void visitInsn(int opcode)
+    {
+        boolean wide_long = _previous == WIDE_LONG;
+        _flush();
+        if (opcode == LCMP && wide_long) {
+            _pending_lcmp = true;
+            return;
+        }
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand)
+    {
+        _flush();
+        super.visitIntInsn(opcode, operand);
+        if (opcode == SIPUSH && _is_wide(operand)) {
+            _previous = WIDE_INT;
+        }
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst)
+    {
+        _flush();
+        super.visitLdcInsn(cst);
+        if (cst instanceof Integer && _is_wide((Integer)cst)) {
+            _previous = WIDE_INT;
+        } else if (cst instanceof Long && _is_wide((Long)cst)) {
+            _previous = WIDE_LONG;
+        } else if (cst instanceof String) {
+            _previous = STRING;
+            _string_constant = (String)cst;
+        }
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label)
+    {
+        boolean wide_int = _previous == WIDE_INT;
+        boolean lcmp = _pending_lcmp;
+        _pending_lcmp = false;
+        _previous = OTHER;
+        if (lcmp && (opcode == IFEQ || opcode == IFNE) && _reserve(8 * BYTE_SIZE)) {
+            _split_long(opcode, label);
+            return;
+        }
+        if (lcmp) {
+            super.visitInsn(LCMP);
+        }
+        if (wide_int && (opcode == IF_ICMPEQ || opcode == IF_ICMPNE)
+            && _reserve(4 * BYTE_SIZE)) {
+            _split_int(opcode, label);
+            return;
+        }
+        super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitMethodInsn(
+        int opcode, String owner, String name, String desc, boolean itf)
+    {
+        boolean string = _previous == STRING;
+        _flush();
+        if (string
+            && opcode == INVOKEVIRTUAL
+            && owner.equals("java/lang/String")
+            && name.equals("equals")
+            && desc.equals("(Ljava/lang/Object;)Z")
+            && !_string_constant.isEmpty()
+            && _reserve(CHARACTER_SIZE * (_string_constant.length() + 1))) {
+            _split_string(_string_constant);
+            return;
+        }
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(
+        int min, int max, Label dflt, Label... labels)
+    {
+        _flush();
+        int count = 0;
+        for (Label label : labels) {
+            if (label != dflt) {
+                count++;
+            }
+        }
+        int[] keys = new int[count];
+        Label[] targets = new Label[count];
+        count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != dflt) {
+                keys[count] = min + i;
+                targets[count] = labels[i];
+                count++;
+            }
+        }
+        if (!_split_switch(keys, targets, dflt)) {
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
+    {
+        _flush();
+        if (!_split_switch(keys, labels, dflt)) {
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var)
+    {
+        _flush();
+        super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type)
+    {
+        _flush();
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(
+        int opcode, String owner, String name, String desc)
+    {
+        _flush();
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(
+        String name, String desc, Handle bsm, Object... bsmArgs)
+    {
+        _flush();
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitLabel(Label label)
+    {
+        _flush();
+        super.visitLabel(label);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment)
+    {
+        _flush();
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims)
+    {
+        _flush();
+        super.visitMultiANewArrayInsn(desc, dims);
+    }
+
+    @Override
+    public void visitFrame(
+        int type, int nLocal, Object[] local, int nStack, Object[] stack)
+    {
+        _flush();
+        super.visitFrame(type, nLocal, local, nStack, stack);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals)
+    {
+        _flush();
+        super.visitMaxs(maxStack, maxLocals);
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Decides which methods get coverage probes.
+ *
+ * Rules are class name globs like "com.example.**" or
+ * "com.example.Parser*", optionally followed by "#" and a method name
+ * glob like "**#toString" or "com.example.Parser#parse*". "*" matches
+ * anything inside one package name component, "**" matches anything.
+ * A method is instrumented if it matches any include rule, or there
+ * are none, and no exclude rules. main() methods without probes still
+ * start the fork server, except in classes that an exclude rule
+ * without a method part matches. These are left as they are.
+ */
+public class JavaAflFilter
+{
+    static private class Rule
+    {
+        Pattern class_pattern;
+        // null matches every method.
+        Pattern method_pattern;
+
+        Rule(String rule)
+        {
+            int separator = rule.indexOf('#');
+            if (separator < 0) {
+                class_pattern = _glob(rule, "[^.]*");
+            } else {
+                class_pattern = _glob(rule.substring(0, separator), "[^.]*");
+                method_pattern = _glob(rule.substring(separator + 1), ".*");
+            }
+        }
+
+        boolean matches(String class_name, String method_name)
+        {
+            return class_pattern.matcher(class_name).matches()
+                && (method_pattern == null
+                    || method_pattern.matcher(method_name).matches());
+        }
+    }
+
+    static private Pattern _glob(String glob, String star)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append(star);
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private ArrayList<Rule> _includes = new ArrayList<Rule>();
+    private ArrayList<Rule> _excludes = new ArrayList<Rule>();
+    private StringBuilder _key = new StringBuilder();
+    boolean skip_synthetic = false;
+    boolean skip_clinit = false;
+
+    /**
+     * Adds rules from a colon separated list.
+     */
+    void include(String rules)
+    {
+        _add(_includes, "+", rules);
+    }
+
+    void exclude(String rules)
+    {
+        _add(_excludes, "-", rules);
+    }
+
+    private void _add(ArrayList<Rule> target, String kind, String rules)
+    {
+        for (String rule : rules.split(":")) {
+            if (!rule.isEmpty()) {
+                target.add(new Rule(rule));
+                _key.append(kind).append(rule);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the method gets probes. Class names are in
+     * the internal form, like "com/example/Parser".
+     */
+    boolean instruments(String class_name, String method_name, int access)
+    {
+        if (skip_synthetic
+            && (access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0) {
+            return false;
+        }
+        if (skip_clinit && method_name.equals("<clinit>")) {
+            return false;
+        }
+        if (_includes.isEmpty() && _excludes.isEmpty()) {
+            return true;
+        }
+        String name = class_name.replace('/', '.');
+        boolean included = _includes.isEmpty();
+        for (Rule rule : _includes) {
+            if (rule.matches(name, method_name)) {
+                included = true;
+                break;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+        for (Rule rule : _excludes) {
+            if (rule.matches(name, method_name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the class needs to be left as it is.
+     */
+    boolean excludes_class(String class_name)
+    {
+        if (_excludes.isEmpty()) {
+            return false;
+        }
+        String name = class_name.replace('/', '.');
+        for (Rule rule : _excludes) {
+            if (rule.method_pattern == null
+                && rule.class_pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String cache_key()
+    {
+        return _key + ",skip-synthetic=" + skip_synthetic
+            + ",skip-clinit=" + skip_clinit;
+    }
+}
@@ -17,31 +17,33 @@
 package javafl;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 
 public class JavaAflInject
 {
+    // Each character of ISO-8859-1 encoded data takes at most two
+    // bytes in the modified UTF-8 encoding of the constant pool,
+    // where each constant can be at most 65535 bytes long.
+    static final int MAX_PART_LENGTH = 65535 / 2;
+
     static class InjectingReader extends ClassReader
     {
-        private String _data;
+        private String _sha256;
 
-        public InjectingReader(
-            FileInputStream file, String data) throws IOException
+        public InjectingReader(FileInputStream file, String sha256)
+            throws IOException
         {
             super(file);
-            if (data.length() > 65535) {
-                // TODO Java's constant pool limits the size of each
-                // string constant to 64 kilobytes. This could be
-                // worked around by combining multiple values during
-                // runtime. It's actually quite possible to exceed
-                // this by having plenty of debugging data added.
-                throw new IllegalArgumentException(
-                    "Injected value can not exceed 64 kilobytes!");
-            }
-            _data = data;
+            _sha256 = sha256;
         }
 
         @Override
@@ -51,13 +53,71 @@ public class JavaAflInject
             if (value == null) {
                 return null;
             }
-            if (value.equals("<INJECT-JNI>")) {
-                return _data;
+            if (value.equals("<INJECT-JNI-SHA256>")) {
+                return _sha256;
             }
             return value;
         }
     }
 
+    /**
+     * Replaces the body of JavaAfl._jni_code() with code that returns
+     * the given parts.
+     */
+    static class InjectingClassVisitor extends ClassVisitor
+    {
+        private ArrayList<String> _parts;
+
+        public InjectingClassVisitor(ClassVisitor cv, ArrayList<String> parts)
+        {
+            super(Opcodes.ASM6, cv);
+            _parts = parts;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+            int access,
+            String name,
+            String desc,
+            String signature,
+            String[] exceptions)
+        {
+            MethodVisitor mv = super.visitMethod(
+                access, name, desc, signature, exceptions);
+            if (!name.equals("_jni_code")) {
+                return mv;
+            }
+            mv.visitCode();
+            mv.visitLdcInsn(_parts.size());
+            mv.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/String");
+            for (int i = 0; i < _parts.size(); i++) {
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitLdcInsn(i);
+                mv.visitLdcInsn(_parts.get(i));
+                mv.visitInsn(Opcodes.AASTORE);
+            }
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+            // The original body is dropped.
+            return null;
+        }
+    }
+
+    static String sha256(byte[] data)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder result = new StringBuilder();
+            for (byte value : digest.digest(data)) {
+                result.append(String.format("%02x", value & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void main(String args[]) throws IOException
     {
         if (args.length != 2) {
@@ -70,16 +130,25 @@ public class JavaAflInject
         File library = new File(library_filename);
         long library_size = library.length();
         byte library_data[] = new byte[(int)library_size];
-        (new FileInputStream(library)).read(library_data);
+        java.io.DataInputStream library_input = new java.io.DataInputStream(
+            new FileInputStream(library));
+        library_input.readFully(library_data);
+        library_input.close();
         java.io.ByteArrayOutputStream data_output = new java.io.ByteArrayOutputStream();
         java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(data_output);
         gzip.write(library_data, 0, library_data.length);
         gzip.finish();
         String jni_data = data_output.toString("ISO-8859-1");
+        ArrayList<String> parts = new ArrayList<String>();
+        for (int i = 0; i < jni_data.length(); i += MAX_PART_LENGTH) {
+            parts.add(jni_data.substring(
+                i, Math.min(jni_data.length(), i + MAX_PART_LENGTH)));
+        }
         ClassReader reader = new InjectingReader(
-            new FileInputStream(class_filename), jni_data);
+            new FileInputStream(class_filename), sha256(library_data));
         ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
-        reader.accept(writer, ClassReader.SKIP_DEBUG);
+        reader.accept(
+            new InjectingClassVisitor(writer, parts), ClassReader.SKIP_DEBUG);
         byte[] bytes = writer.toByteArray();
         (new java.io.FileOutputStream(class_filename)).write(bytes);
     }
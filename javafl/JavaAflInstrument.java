@@ -23,19 +23,27 @@ import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -44,25 +52,56 @@ import static org.objectweb.asm.Opcodes.*;
 
 public class JavaAflInstrument
 {
-    static private int total_locations = 0;
-    static private int total_jarfiles = 0;
-    static private int total_classfiles = 0;
+    static private AtomicInteger total_locations = new AtomicInteger(0);
+    static private AtomicInteger total_jarfiles = new AtomicInteger(0);
+    static private AtomicInteger total_classfiles = new AtomicInteger(0);
+    // Locations of the .class files that go to the output directory.
+    static private AtomicInteger classfile_locations = new AtomicInteger(0);
+
+    // Instrumentation work is distributed to this pool when more than
+    // one job is requested. Otherwise everything happens sequentially
+    // in the calling thread.
+    static private ForkJoinPool _pool = null;
+
+    // Instrumentation results are reused from here when caching is
+    // enabled.
+    static private JavaAflCache _cache = null;
 
     static class InstrumentedClass
     {
         String directory;
         byte[] data;
+        int locations;
+        // Why the class was left as it is, or null.
+        String skip_reason = null;
+        // Methods of an instrumented class for --report.
+        ArrayList<MethodBlocks> methods = null;
 
         InstrumentedClass(byte[] data_)
         {
             directory = "";
             data = data_;
+            locations = 0;
         }
 
         InstrumentedClass(String directory_, byte[] data_)
         {
             directory = directory_;
             data = data_;
+            locations = 0;
+        }
+
+        InstrumentedClass(String directory_, byte[] data_, int locations_)
+        {
+            directory = directory_;
+            data = data_;
+            locations = locations_;
+        }
+
+        InstrumentedClass skipped(String reason)
+        {
+            skip_reason = reason;
+            return this;
         }
     }
 
@@ -71,113 +110,1425 @@ public class JavaAflInstrument
         int ratio;
         boolean has_custom_init;
         boolean deterministic;
+        boolean compute_frames = false;
+        boolean method_locals = false;
+        boolean thread_aware = false;
+        boolean direct_map = false;
+        boolean dirty_tracking = false;
+        boolean cmplog = false;
+        boolean split_compares = false;
+        JavaAflFilter filter = new JavaAflFilter();
+        // Random probe locations are used when this is null.
+        JavaAflProbeIds probe_ids = null;
+        ClassHierarchy hierarchy = ClassHierarchy.system();
+        // Statistics of the instrumented classes are collected here
+        // when this is not null. This does not affect the result.
+        JavaAflReport report = null;
+
+        InstrumentationOptions(int ratio_, boolean has_custom_init_, boolean deterministic_)
+        {
+            ratio = ratio_;
+            has_custom_init = has_custom_init_;
+            deterministic = deterministic_;
+        }
+
+        InstrumentationOptions(InstrumentationOptions other)
+        {
+            this(other.ratio, other.has_custom_init, other.deterministic);
+            compute_frames = other.compute_frames;
+            method_locals = other.method_locals;
+            thread_aware = other.thread_aware;
+            direct_map = other.direct_map;
+            dirty_tracking = other.dirty_tracking;
+            cmplog = other.cmplog;
+            split_compares = other.split_compares;
+            filter = other.filter;
+            probe_ids = other.probe_ids;
+            hierarchy = other.hierarchy;
+            report = other.report;
+        }
+
+        /**
+         * Split comparisons add branch targets that need new stack
+         * map frames.
+         */
+        boolean computes_frames()
+        {
+            return compute_frames || split_compares;
+        }
+
+        /**
+         * Everything that affects the instrumentation result needs
+         * to be part of this.
+         */
+        String cache_key()
+        {
+            return "ratio=" + ratio
+                + ",custom-init=" + has_custom_init
+                + ",deterministic=" + deterministic
+                + ",compute-frames=" + compute_frames
+                + ",method-locals=" + method_locals
+                + ",thread-aware=" + thread_aware
+                + ",direct-map=" + direct_map
+                + ",dirty-tracking=" + dirty_tracking
+                + ",cmplog=" + cmplog
+                + ",split-compares=" + split_compares
+                + ",filter=" + filter.cache_key()
+                + ",stable-ids=" + (probe_ids != null)
+                + ",map-size=" + javafl.JavaAfl.map.length;
+        }
+    }
+
+    /**
+     * Index of class hierarchy information that is read from class
+     * files instead of loading classes.
+     *
+     * Classes that are being instrumented get added here before they
+     * are needed, and everything else is looked up from the class
+     * files that the given class loader can find. Nothing gets loaded
+     * or initialized.
+     */
+    static class ClassHierarchy
+    {
+        static private ClassHierarchy _system = null;
+
+        private ClassLoader _loader;
+        // Class name -> {super class name, "interface" or "class"}.
+        private ConcurrentHashMap<String, String[]> _classes =
+            new ConcurrentHashMap<String, String[]>();
+
+        ClassHierarchy(ClassLoader loader)
+        {
+            _loader = loader;
+        }
+
+        static synchronized ClassHierarchy system()
+        {
+            if (_system == null) {
+                _system = new ClassHierarchy(
+                    ClassLoader.getSystemClassLoader());
+            }
+            return _system;
+        }
+
+        void add(ClassReader reader)
+        {
+            String kind = "class";
+            if ((reader.getAccess() & ACC_INTERFACE) != 0) {
+                kind = "interface";
+            }
+            _classes.putIfAbsent(
+                reader.getClassName(),
+                new String[] {reader.getSuperName(), kind});
+        }
+
+        void add(byte[] data)
+        {
+            try {
+                add(new ClassReader(data));
+            } catch (RuntimeException e) {
+                // Not a class file that we could make any sense of.
+            }
+        }
+
+        private String[] _lookup(String type)
+        {
+            String[] result = _classes.get(type);
+            if (result != null) {
+                return result;
+            }
+            InputStream stream = null;
+            if (_loader != null) {
+                stream = _loader.getResourceAsStream(type + ".class");
+            }
+            if (stream == null) {
+                stream = ClassLoader.getSystemResourceAsStream(type + ".class");
+            }
+            if (stream == null) {
+                throw new TypeNotPresentException(type, null);
+            }
+            add(input_stream_to_bytes(stream));
+            result = _classes.get(type);
+            if (result == null) {
+                throw new TypeNotPresentException(type, null);
+            }
+            return result;
+        }
+
+        private boolean _is_interface(String type)
+        {
+            return _lookup(type)[1].equals("interface");
+        }
+
+        private ArrayList<String> _super_classes(String type)
+        {
+            ArrayList<String> result = new ArrayList<String>();
+            String current = type;
+            while (current != null) {
+                result.add(current);
+                current = _lookup(current)[0];
+            }
+            return result;
+        }
+
+        String common_super_class(String type1, String type2)
+        {
+            if (type1.equals(type2)) {
+                return type1;
+            }
+            // Verifier treats interfaces like java.lang.Object, so
+            // there is no need to find out a common interface.
+            if (_is_interface(type1) || _is_interface(type2)) {
+                return "java/lang/Object";
+            }
+            ArrayList<String> supers2 = _super_classes(type2);
+            for (String super1 : _super_classes(type1)) {
+                if (supers2.contains(super1)) {
+                    return super1;
+                }
+            }
+            return "java/lang/Object";
+        }
+    }
+
+    /**
+     * ClassWriter that computes frames without loading any classes.
+     */
+    static class HierarchyClassWriter extends ClassWriter
+    {
+        private ClassHierarchy _hierarchy;
+
+        HierarchyClassWriter(ClassHierarchy hierarchy)
+        {
+            super(ClassWriter.COMPUTE_FRAMES);
+            _hierarchy = hierarchy;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2)
+        {
+            return _hierarchy.common_super_class(type1, type2);
+        }
+    }
+
+    /**
+     * Splits method code into basic blocks.
+     *
+     * A new block starts at method entry, at every label and after
+     * every conditional jump. Labels that directly follow each other
+     * without any instructions in between belong to the same block,
+     * so that there is exactly one place where each block can be
+     * instrumented: right before its first instruction. This is after
+     * all labels and stack map frames of the block.
+     *
+     * Block numbers only depend on the sequence of visited events, so
+     * the analysis pass and the instrumentation pass agree on them as
+     * long as both read the class with the same flags.
+     */
+    static class BlockTrackingMethodVisitor extends MethodVisitor
+    {
+        private int _blocks = 0;
+        private int _current_block = -1;
+        private boolean _current_empty = false;
+
+        public BlockTrackingMethodVisitor(MethodVisitor mv_)
+        {
+            super(Opcodes.ASM6, mv_);
+        }
+
+        // Hooks for subclasses:
+        protected void visitBlockStart(int block) {}
+        protected void visitBlockLabel(int block, Label label) {}
+        protected void visitBlockEdge(int from, int to) {}
+        protected void visitBlockEdge(int from, Label to) {}
+
+        private int _new_block()
+        {
+            return _blocks++;
+        }
+
+        private void _fall_through()
+        {
+            int next_block = _new_block();
+            visitBlockEdge(_current_block, next_block);
+            _current_block = next_block;
+            _current_empty = true;
+        }
+
+        /**
+         * Called before each instruction that comes from the original
+         * method.
+         */
+        protected void beginInstruction()
+        {
+            if (_current_block >= 0 && _current_empty) {
+                _current_empty = false;
+                visitBlockStart(_current_block);
+            }
+        }
+
+        protected int currentBlock()
+        {
+            return _current_block;
+        }
+
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+            _current_block = _new_block();
+            _current_empty = true;
+        }
+
+        @Override
+        public void visitLabel(Label label)
+        {
+            super.visitLabel(label);
+            if (_current_block < 0) {
+                _current_block = _new_block();
+                _current_empty = true;
+            } else if (!_current_empty) {
+                _fall_through();
+            }
+            visitBlockLabel(_current_block, label);
+        }
+
+        @Override
+        public void visitInsn(int opcode)
+        {
+            beginInstruction();
+            super.visitInsn(opcode);
+            if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW) {
+                _current_block = -1;
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand)
+        {
+            beginInstruction();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var)
+        {
+            beginInstruction();
+            super.visitVarInsn(opcode, var);
+            if (opcode == RET) {
+                _current_block = -1;
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type)
+        {
+            beginInstruction();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(
+            int opcode, String owner, String name, String desc)
+        {
+            beginInstruction();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(
+            int opcode, String owner, String name, String desc, boolean itf)
+        {
+            beginInstruction();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(
+            String name, String desc, Handle bsm, Object... bsmArgs)
+        {
+            beginInstruction();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label)
+        {
+            beginInstruction();
+            super.visitJumpInsn(opcode, label);
+            if (_current_block < 0) {
+                return;
+            }
+            visitBlockEdge(_current_block, label);
+            if (opcode == GOTO) {
+                _current_block = -1;
+            } else {
+                _fall_through();
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst)
+        {
+            beginInstruction();
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment)
+        {
+            beginInstruction();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(
+            int min, int max, Label dflt, Label... labels)
+        {
+            beginInstruction();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+            _switch_edges(dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(
+            Label dflt, int[] keys, Label[] labels)
+        {
+            beginInstruction();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+            _switch_edges(dflt, labels);
+        }
+
+        private void _switch_edges(Label dflt, Label[] labels)
+        {
+            if (_current_block < 0) {
+                return;
+            }
+            visitBlockEdge(_current_block, dflt);
+            for (Label label : labels) {
+                visitBlockEdge(_current_block, label);
+            }
+            _current_block = -1;
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims)
+        {
+            beginInstruction();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+    }
+
+    /**
+     * Result of the block analysis for one method.
+     */
+    static class MethodBlocks
+    {
+        // Tells which blocks need a probe at their beginning.
+        boolean[] probes;
+        // Tells which blocks are exception handlers.
+        boolean[] handlers;
+        // Local variable slots used by the original method.
+        int max_locals;
+        // Probes are calls to JavaAfl._log() instead of being inlined.
+        boolean compact = false;
+        // Maximum number of probes to add out of all probe_count
+        // probes, or -1 for no limit.
+        int probe_budget = -1;
+        int probe_count = 0;
+        // Filtered out or annotated with javafl.NoInstrument.
+        boolean skipped = false;
+        // Comparisons are logged for afl++ CmpLog.
+        boolean cmplog = false;
+        // Number of probes that the instrumentation added.
+        int locations = 0;
+        // Class, method name and descriptor for stable probe locations.
+        String key;
+        // Edges between blocks with probes as from, to pairs. Only
+        // collected for stable probe locations.
+        int[] probe_edges = new int[0];
+
+        MethodBlocks(boolean[] probes_, boolean[] handlers_, int max_locals_)
+        {
+            probes = probes_;
+            handlers = handlers_;
+            max_locals = max_locals_;
+        }
+    }
+
+    /**
+     * Builds a control flow graph of basic blocks and decides which
+     * blocks need a probe.
+     *
+     * A block does not need a probe if it has exactly one predecessor
+     * that in turn has exactly one successor, as then executing the
+     * predecessor always means executing this block. This is the same
+     * pruning that afl's LLVM mode does for blocks that are dominated
+     * by a single predecessor. Method entry and exception handlers
+     * always get probes, as their predecessors are not known.
+     *
+     * This also estimates the size of the instrumented method. Methods
+     * that would not fit in the 64 kilobyte method size limit get
+     * compact probes and, if that is not enough, fewer probes.
+     */
+    static class BlockAnalyzingMethodVisitor extends BlockTrackingMethodVisitor
+    {
+        private ArrayList<MethodBlocks> _results;
+        private HashMap<Label, Integer> _label_blocks = new HashMap<Label, Integer>();
+        private ArrayList<Label> _handlers = new ArrayList<Label>();
+        private HashSet<Label> _try_starts = new HashSet<Label>();
+        // Blocks that start inside a try range, which is not known
+        // here, so this counts all blocks after the first try range.
+        private int _try_blocks = 0;
+        private ArrayList<int[]> _edges = new ArrayList<int[]>();
+        private ArrayList<Integer> _label_edge_sources = new ArrayList<Integer>();
+        private ArrayList<Label> _label_edge_targets = new ArrayList<Label>();
+        private int _blocks = 0;
+        private int _max_locals = 0;
+        private InstrumentationOptions _options;
+        // Estimate of the original code size and the number of
+        // places where method locals would be synchronized.
+        private int _code_size = 0;
+        private int _syncs = 0;
+        // Number of comparisons that --cmplog would log.
+        private int _cmp_sites = 0;
+        private boolean _skipped;
+        private String _key;
+
+        public BlockAnalyzingMethodVisitor(
+            ArrayList<MethodBlocks> results,
+            InstrumentationOptions options,
+            boolean skipped,
+            String key)
+        {
+            super(null);
+            _results = results;
+            _options = options;
+            _skipped = skipped;
+            _key = key;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+        {
+            if (desc.equals(NO_INSTRUMENT)) {
+                _skipped = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void visitInsn(int opcode)
+        {
+            _code_size += 1;
+            if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW) {
+                _syncs++;
+            }
+            if (opcode == LCMP) {
+                _cmp_sites++;
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand)
+        {
+            _code_size += opcode == SIPUSH ? 3 : 2;
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var)
+        {
+            if (var < 4 && opcode != RET) {
+                _code_size += 1;
+            } else {
+                _code_size += var < 256 ? 2 : 4;
+            }
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type)
+        {
+            _code_size += 3;
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(
+            int opcode, String owner, String name, String desc)
+        {
+            _code_size += 3;
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(
+            int opcode, String owner, String name, String desc, boolean itf)
+        {
+            _code_size += 5;
+            _syncs += 2;
+            if (InstrumentingMethodVisitor.is_cmp_method(owner, name, desc)) {
+                _cmp_sites++;
+            }
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(
+            String name, String desc, Handle bsm, Object... bsmArgs)
+        {
+            _code_size += 5;
+            _syncs += 2;
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label)
+        {
+            _code_size += 3;
+            if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+                _cmp_sites++;
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst)
+        {
+            _code_size += 3;
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment)
+        {
+            boolean is_wide = var > 255 || increment < -128 || increment > 127;
+            _code_size += is_wide ? 6 : 3;
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(
+            int min, int max, Label dflt, Label... labels)
+        {
+            _code_size += 16 + 4 * labels.length;
+            _cmp_sites++;
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(
+            Label dflt, int[] keys, Label[] labels)
+        {
+            _code_size += 12 + 8 * labels.length;
+            _cmp_sites++;
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims)
+        {
+            _code_size += 4;
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        @Override
+        protected void visitBlockStart(int block)
+        {
+            _blocks = Math.max(_blocks, block + 1);
+            if (_try_blocks > 0) {
+                _try_blocks++;
+            }
+        }
+
+        @Override
+        public void visitLabel(Label label)
+        {
+            if (_try_starts.contains(label) && _try_blocks == 0) {
+                _try_blocks = 1;
+            }
+            super.visitLabel(label);
+        }
+
+        @Override
+        protected void visitBlockLabel(int block, Label label)
+        {
+            _blocks = Math.max(_blocks, block + 1);
+            _label_blocks.put(label, block);
+        }
+
+        @Override
+        protected void visitBlockEdge(int from, int to)
+        {
+            _blocks = Math.max(_blocks, to + 1);
+            _edges.add(new int[] {from, to});
+        }
+
+        @Override
+        protected void visitBlockEdge(int from, Label to)
+        {
+            _label_edge_sources.add(from);
+            _label_edge_targets.add(to);
+        }
+
+        @Override
+        public void visitTryCatchBlock(
+            Label start, Label end, Label handler, String type)
+        {
+            _handlers.add(handler);
+            _try_starts.add(start);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            _max_locals = maxLocals;
+        }
+
+        @Override
+        public void visitEnd()
+        {
+            for (int i = 0; i < _label_edge_targets.size(); i++) {
+                Integer to = _label_blocks.get(_label_edge_targets.get(i));
+                if (to != null) {
+                    _edges.add(new int[] {_label_edge_sources.get(i), to});
+                }
+            }
+            ArrayList<HashSet<Integer>> predecessors =
+                new ArrayList<HashSet<Integer>>();
+            ArrayList<HashSet<Integer>> successors =
+                new ArrayList<HashSet<Integer>>();
+            for (int i = 0; i < _blocks; i++) {
+                predecessors.add(new HashSet<Integer>());
+                successors.add(new HashSet<Integer>());
+            }
+            for (int[] edge : _edges) {
+                successors.get(edge[0]).add(edge[1]);
+                predecessors.get(edge[1]).add(edge[0]);
+            }
+            boolean[] probes = new boolean[_blocks];
+            for (int block = 0; block < _blocks; block++) {
+                HashSet<Integer> block_predecessors = predecessors.get(block);
+                if (block == 0) {
+                    probes[block] = true;
+                } else if (block_predecessors.size() == 1) {
+                    int predecessor = block_predecessors.iterator().next();
+                    probes[block] = successors.get(predecessor).size() != 1;
+                } else {
+                    // Blocks without predecessors are unreachable
+                    // unless they are exception handlers.
+                    probes[block] = block_predecessors.size() > 1;
+                }
+            }
+            boolean[] handlers = new boolean[_blocks];
+            for (Label handler : _handlers) {
+                Integer block = _label_blocks.get(handler);
+                if (block != null) {
+                    probes[block] = true;
+                    handlers[block] = true;
+                }
+            }
+            if (_skipped) {
+                probes = new boolean[_blocks];
+            }
+            MethodBlocks result = new MethodBlocks(
+                probes, handlers, _max_locals);
+            result.skipped = _skipped;
+            result.key = _key;
+            if (_options.probe_ids != null) {
+                result.probe_edges = _probe_edges(probes, predecessors);
+            }
+            _fit_size_limit(result);
+            _results.add(result);
+        }
+
+        /**
+         * Returns the edges that the probes of this method can record.
+         * Blocks without probes are passed through to their only
+         * predecessor.
+         */
+        private int[] _probe_edges(
+            boolean[] probes, ArrayList<HashSet<Integer>> predecessors)
+        {
+            ArrayList<Integer> result = new ArrayList<Integer>();
+            for (int to = 0; to < probes.length; to++) {
+                if (!probes[to]) {
+                    continue;
+                }
+                for (int from : predecessors.get(to)) {
+                    for (int i = 0; i < probes.length && !probes[from]; i++) {
+                        HashSet<Integer> from_predecessors = predecessors.get(from);
+                        if (from_predecessors.size() != 1) {
+                            break;
+                        }
+                        from = from_predecessors.iterator().next();
+                    }
+                    if (probes[from]) {
+                        result.add(from);
+                        result.add(to);
+                    }
+                }
+            }
+            int[] edges = new int[result.size()];
+            for (int i = 0; i < edges.length; i++) {
+                edges[i] = result.get(i);
+            }
+            return edges;
+        }
+
+        private void _fit_size_limit(MethodBlocks result)
+        {
+            int probe_count = 0;
+            for (boolean probe : result.probes) {
+                if (probe) {
+                    probe_count++;
+                }
+            }
+            int size = _code_size + InstrumentingMethodVisitor.MAIN_SIZE;
+            // Comparisons are left out before any probes are.
+            int cmplog_size = _cmp_sites * InstrumentingMethodVisitor.CMP_SIZE;
+            if (_options.cmplog
+                && !result.skipped
+                && size + cmplog_size + probe_count * InstrumentingMethodVisitor.COMPACT_PROBE_SIZE
+                   <= InstrumentingMethodVisitor.MAX_CODE_SIZE) {
+                result.cmplog = true;
+                size += cmplog_size;
+            }
+            int probe_size = InstrumentingMethodVisitor.PROBE_SIZE;
+            if (_options.dirty_tracking) {
+                probe_size += InstrumentingMethodVisitor.DIRTY_SIZE;
+            }
+            int inline_size = size + probe_count * probe_size;
+            if (_options.method_locals || _options.thread_aware) {
+                inline_size += InstrumentingMethodVisitor.SYNC_SIZE
+                    * (_syncs + _handlers.size() + _try_blocks + 3);
+            }
+            if (inline_size <= InstrumentingMethodVisitor.MAX_CODE_SIZE) {
+                return;
+            }
+            result.compact = true;
+            int available = InstrumentingMethodVisitor.MAX_CODE_SIZE - size;
+            int budget = Math.max(
+                0, available / InstrumentingMethodVisitor.COMPACT_PROBE_SIZE);
+            if (budget < probe_count) {
+                result.probe_budget = budget;
+                result.probe_count = probe_count;
+            }
+        }
+    }
+
+    static class BlockAnalyzingClassVisitor extends ClassVisitor
+    {
+        ArrayList<MethodBlocks> methods = new ArrayList<MethodBlocks>();
+        boolean has_main = false;
+
+        private InstrumentationOptions _options;
+        private String _class_name;
+        private boolean _class_skipped = false;
+
+        public BlockAnalyzingClassVisitor(InstrumentationOptions options)
+        {
+            super(Opcodes.ASM6);
+            _options = options;
+        }
+
+        @Override
+        public void visit(
+            int version,
+            int access,
+            String name,
+            String signature,
+            String superName,
+            String[] interfaces)
+        {
+            _class_name = name;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+        {
+            if (desc.equals(NO_INSTRUMENT)) {
+                _class_skipped = true;
+            }
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(
+            int access,
+            String name,
+            String desc,
+            String signature,
+            String[] exceptions)
+        {
+            if (is_main(name, access)) {
+                has_main = true;
+            }
+            boolean skipped = _class_skipped
+                || !_options.filter.instruments(_class_name, name, access);
+            if (skipped && !is_main(name, access)) {
+                // The code of this method does not need to be read.
+                MethodBlocks blocks = new MethodBlocks(
+                    new boolean[0], new boolean[0], 0);
+                blocks.skipped = true;
+                blocks.key = _class_name + "." + name + desc;
+                methods.add(blocks);
+                return null;
+            }
+            MethodVisitor analyzer = new BlockAnalyzingMethodVisitor(
+                methods, _options, skipped, _class_name + "." + name + desc);
+            if (_options.split_compares && !skipped) {
+                return new JavaAflCompareSplitter(analyzer);
+            }
+            return analyzer;
+        }
+
+        /**
+         * Returns false if nothing gets probes and there is no main()
+         * to start the fork server from.
+         */
+        boolean changes_class()
+        {
+            if (has_main) {
+                return true;
+            }
+            for (MethodBlocks method : methods) {
+                if (!method.skipped) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class InstrumentingMethodVisitor extends BlockTrackingMethodVisitor
+    {
+        // Maximum number of stack entries that a probe uses.
+        static final int PROBE_STACK_SIZE = 5;
+        // Upper bounds of the code sizes of what this adds to methods.
+        static final int MAX_CODE_SIZE = 65535;
+        static final int PROBE_SIZE = 29;
+        static final int COMPACT_PROBE_SIZE = 6;
+        static final int DIRTY_SIZE = 10;
+        static final int SYNC_SIZE = 11;
+        static final int MAIN_SIZE = 6;
+        static final int CMP_SIZE = 10;
+        static final String THREAD_STATE = "javafl/JavaAfl$ThreadState";
+
+        private boolean _has_custom_init;
+        private int _instrumentation_ratio;
+        private boolean _is_main;
+        private InstrumentationOptions _options;
+        private Random _random;
+        private InstrumentingClassVisitor _owner;
+        private MethodBlocks _blocks;
+        private boolean _block_starts_with_new = false;
+        private Integer _deferred_block = null;
+        // Spreads probes evenly when only some of them fit.
+        private int _probe_credit = 0;
+        // Probes are calls to JavaAfl._log() or to its variants.
+        private boolean _compact;
+        private boolean _thread_aware;
+        // Probes write directly to the shared memory through
+        // JavaAfl._log_direct(). Thread states always have their own
+        // maps.
+        private boolean _direct_map;
+        // Probes mark the line of the map that they write to in
+        // JavaAfl.dirty. Thread maps are merged as a whole.
+        private boolean _dirty_tracking;
+        // Local variable slots for the map reference and the
+        // previous location, or -1 if they are accessed through
+        // static fields. In the thread aware mode there is also a
+        // slot for the state of the current thread.
+        private int _state_local = -1;
+        private int _map_local = -1;
+        private int _prev_local = -1;
+        // Number of comparisons logged so far for --cmplog.
+        private int _cmp_sites = 0;
+        // Try ranges that start and end at each label, and the number
+        // of them that the current instruction is in. Instructions
+        // can throw without a call or ATHROW, so the local previous
+        // location is written back at each block of a try range.
+        private HashMap<Label, Integer> _try_range_changes = new HashMap<Label, Integer>();
+        private int _try_ranges = 0;
+
+        public InstrumentingMethodVisitor(
+            MethodVisitor mv_,
+            InstrumentingClassVisitor owner,
+            MethodBlocks blocks,
+            Random random,
+            InstrumentationOptions options,
+            boolean is_main)
+        {
+            super(mv_);
+            _owner = owner;
+            _blocks = blocks;
+            _is_main = is_main;
+            _random = random;
+            _options = options;
+            _instrumentation_ratio = options.ratio;
+            _has_custom_init = options.has_custom_init;
+            _thread_aware = options.thread_aware;
+            _direct_map = options.direct_map && !_thread_aware;
+            _dirty_tracking = options.dirty_tracking
+                && !_thread_aware
+                && !_direct_map;
+            _compact = blocks.compact || _direct_map;
+            // Extra slots need to fit in the 16 bit local variable
+            // index.
+            boolean use_locals = (options.method_locals || _thread_aware)
+                && !_compact
+                && blocks.max_locals < 0xfffd;
+            if (use_locals) {
+                int local = blocks.max_locals;
+                if (_thread_aware) {
+                    _state_local = local;
+                    local++;
+                }
+                _map_local = local;
+                _prev_local = local + 1;
+            } else if (_thread_aware) {
+                _compact = true;
+            }
+        }
+
+        private void _load_map()
+        {
+            if (_map_local >= 0) {
+                mv.visitVarInsn(ALOAD, _map_local);
+            } else {
+                mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "map", "[B");
+            }
+        }
+
+        private void _load_prev_location()
+        {
+            if (_prev_local >= 0) {
+                mv.visitVarInsn(ILOAD, _prev_local);
+            } else {
+                mv.visitFieldInsn(
+                    GETSTATIC, "javafl/JavaAfl", "prev_location", "I");
+            }
+        }
+
+        private void _store_prev_location()
+        {
+            if (_prev_local >= 0) {
+                mv.visitVarInsn(ISTORE, _prev_local);
+            } else {
+                mv.visitFieldInsn(
+                    PUTSTATIC, "javafl/JavaAfl", "prev_location", "I");
+            }
+        }
+
+        /**
+         * Writes the local previous location back to the static
+         * field or to the thread state so that other methods continue
+         * from it.
+         */
+        private void _sync_to_shared()
+        {
+            if (_state_local >= 0) {
+                mv.visitVarInsn(ALOAD, _state_local);
+                mv.visitVarInsn(ILOAD, _prev_local);
+                mv.visitFieldInsn(
+                    PUTFIELD, THREAD_STATE, "prev_location", "I");
+            } else if (_prev_local >= 0) {
+                mv.visitVarInsn(ILOAD, _prev_local);
+                mv.visitFieldInsn(
+                    PUTSTATIC, "javafl/JavaAfl", "prev_location", "I");
+            }
+        }
+
+        /**
+         * Reads the previous location from the static field or from
+         * the thread state after other methods may have changed it.
+         */
+        private void _sync_from_shared()
+        {
+            if (_state_local >= 0) {
+                mv.visitVarInsn(ALOAD, _state_local);
+                mv.visitFieldInsn(
+                    GETFIELD, THREAD_STATE, "prev_location", "I");
+                mv.visitVarInsn(ISTORE, _prev_local);
+            } else if (_prev_local >= 0) {
+                mv.visitFieldInsn(
+                    GETSTATIC, "javafl/JavaAfl", "prev_location", "I");
+                mv.visitVarInsn(ISTORE, _prev_local);
+            }
+        }
+
+        /**
+         * Marks the line of the tuple index that is on the top of the
+         * stack as dirty.
+         */
+        private void _mark_dirty()
+        {
+            // + tuple_index
+            mv.visitInsn(DUP);
+            // + &JavaAfl.dirty
+            mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "dirty", "[B");
+            // = tuple_index, &JavaAfl.dirty
+            mv.visitInsn(SWAP);
+            // + DIRTY_LINE_SHIFT
+            mv.visitIntInsn(BIPUSH, javafl.JavaAfl.DIRTY_LINE_SHIFT);
+            // - 2 values (DIRTY_LINE_SHIFT, tuple_index)
+            // + tuple_index >> DIRTY_LINE_SHIFT -> line
+            mv.visitInsn(ISHR);
+            // + 1
+            mv.visitInsn(ICONST_1);
+            // - 3 values (1, line, &JavaAfl.dirty)
+            mv.visitInsn(BASTORE);
+        }
+
+        private void _aflMaybeLog(int block)
+        {
+            _owner.locations++;
+            _blocks.locations++;
+            int location_id;
+            if (_options.probe_ids != null) {
+                location_id = _options.probe_ids.id(_blocks.key, block);
+            } else {
+                location_id = _random.nextInt(javafl.JavaAfl.map.length);
+            }
+            if (_compact) {
+                String log_method = "_log";
+                if (_thread_aware) {
+                    log_method = "_log_thread";
+                } else if (_direct_map) {
+                    log_method = "_log_direct";
+                } else if (_dirty_tracking) {
+                    log_method = "_log_dirty";
+                }
+                mv.visitLdcInsn(location_id);
+                mv.visitMethodInsn(
+                    INVOKESTATIC, "javafl/JavaAfl", log_method, "(I)V", false);
+                return;
+            }
+            // + &JavaAfl.map
+            _load_map();
+            // + location_id
+            mv.visitLdcInsn(location_id);
+            // + JavaAfl.prev_location
+            _load_prev_location();
+            // - 2 values (location_id, prev_location)
+            // + location_id ^ prev_location
+            mv.visitInsn(IXOR);
+            // + JavaAfl.map_mask
+            mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "map_mask", "I");
+            // - 2 values (map_mask, location_id ^ prev_location)
+            // + (location_id ^ prev_location) & map_mask -> tuple_index
+            mv.visitInsn(IAND);
+            if (_dirty_tracking) {
+                _mark_dirty();
+            }
+            // + &JavaAfl.map
+            // + tuple_index
+            mv.visitInsn(DUP2);
+            // - 2 values (&JavaAfl.map, tuple_index)
+            // + JavaAfl.map[tuple_index] -> previous_tuple_value
+            mv.visitInsn(BALOAD);
+            // + 1
+            mv.visitInsn(ICONST_1);
+            // - 2 values (1, previous_tuple_value)
+            // + 1 + previous_tuple_value -> new_tuple_value
+            mv.visitInsn(IADD);
+            // = (byte)new_tuple_value
+            mv.visitInsn(I2B);
+            // - 3 values (new_tuple_value, tuple_index, &JavaAfl.map)
+            // = new_tuple_value
+            mv.visitInsn(BASTORE);
+            // Stack modifications are now +-0 here.
+
+            // + location_id >> 1 = shifted_location
+            mv.visitLdcInsn(location_id >> 1);
+            // - 1 value (shifted_location)
+            _store_prev_location();
+        }
+
+        // Methods whose arguments are worth logging for --cmplog.
+        // Their receiver and argument are the two top stack values.
+        static private final HashSet<String> CMP_METHODS = new HashSet<String>(
+            Arrays.asList(
+                "java/lang/String.equals(Ljava/lang/Object;)Z",
+                "java/lang/String.equalsIgnoreCase(Ljava/lang/String;)Z",
+                "java/lang/String.contentEquals(Ljava/lang/CharSequence;)Z",
+                "java/lang/String.startsWith(Ljava/lang/String;)Z",
+                "java/lang/String.endsWith(Ljava/lang/String;)Z",
+                "java/lang/String.contains(Ljava/lang/CharSequence;)Z",
+                "java/lang/String.compareTo(Ljava/lang/String;)I",
+                "java/util/Arrays.equals([B[B)Z"));
+        // CmpLog attributes of the conditions that IF_ICMPEQ to
+        // IF_ICMPLE jump on.
+        static private final int[] CMP_ATTRIBUTES = {
+            javafl.JavaAfl.CMP_EQ,
+            0,
+            javafl.JavaAfl.CMP_LT,
+            javafl.JavaAfl.CMP_GE,
+            javafl.JavaAfl.CMP_GT,
+            javafl.JavaAfl.CMP_LE,
+        };
+        // Switches with more keys only log the first ones.
+        static private final int MAX_CMP_SWITCH_KEYS = 256;
+
+        static boolean is_cmp_method(String owner, String name, String desc)
+        {
+            return CMP_METHODS.contains(owner + "." + name + desc);
+        }
+
+        // These don't take random numbers, so that probes get the same
+        // locations as without --cmplog.
+        private int _cmp_id()
+        {
+            return JavaAflProbeIds.site_id(
+                _blocks.key, _cmp_sites++, javafl.JavaAfl.CMP_MAP_W);
+        }
+
+        /**
+         * Logs the switch key on the top of the stack against the
+         * given case keys.
+         */
+        private void _cmp_switch(int[] keys, int count)
+        {
+            StringBuilder encoded = new StringBuilder();
+            for (int i = 0; i < count && i < MAX_CMP_SWITCH_KEYS; i++) {
+                encoded.append((char)(keys[i] >>> 16));
+                encoded.append((char)keys[i]);
+            }
+            if (encoded.length() == 0) {
+                return;
+            }
+            // + key
+            mv.visitInsn(DUP);
+            // + encoded keys
+            mv.visitLdcInsn(encoded.toString());
+            // + site id
+            mv.visitLdcInsn(_cmp_id());
+            // - 3 values
+            mv.visitMethodInsn(
+                INVOKESTATIC,
+                "javafl/JavaAfl",
+                "_cmp_switch",
+                "(ILjava/lang/String;I)V",
+                false);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label)
+        {
+            if (_blocks.cmplog && opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+                beginInstruction();
+                // + value1, value2
+                mv.visitInsn(DUP2);
+                // + attribute
+                mv.visitInsn(ICONST_0 + CMP_ATTRIBUTES[opcode - IF_ICMPEQ]);
+                // + site id
+                mv.visitLdcInsn(_cmp_id());
+                // - 4 values
+                mv.visitMethodInsn(
+                    INVOKESTATIC, "javafl/JavaAfl", "_cmp", "(IIII)V", false);
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(
+            int min, int max, Label dflt, Label... labels)
+        {
+            if (_blocks.cmplog) {
+                beginInstruction();
+                int[] keys = new int[labels.length];
+                int count = 0;
+                for (int i = 0; i < labels.length; i++) {
+                    if (labels[i] != dflt) {
+                        keys[count++] = min + i;
+                    }
+                }
+                _cmp_switch(keys, count);
+            }
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(
+            Label dflt, int[] keys, Label[] labels)
+        {
+            if (_blocks.cmplog) {
+                beginInstruction();
+                _cmp_switch(keys, keys.length);
+            }
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+            if (_is_main && !_has_custom_init) {
+                mv.visitMethodInsn(
+                    INVOKESTATIC,
+                    "javafl/JavaAfl",
+                    "_before_main",
+                    "()V",
+                    false);
+            }
+            if (_state_local >= 0) {
+                mv.visitMethodInsn(
+                    INVOKESTATIC,
+                    "javafl/JavaAfl",
+                    "_thread_state",
+                    "()L" + THREAD_STATE + ";",
+                    false);
+                mv.visitInsn(DUP);
+                mv.visitVarInsn(ASTORE, _state_local);
+                mv.visitFieldInsn(GETFIELD, THREAD_STATE, "map", "[B");
+                mv.visitVarInsn(ASTORE, _map_local);
+                _sync_from_shared();
+            } else if (_map_local >= 0) {
+                mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "map", "[B");
+                mv.visitVarInsn(ASTORE, _map_local);
+                _sync_from_shared();
+            }
+        }
+
+        private void _begin_block(int block)
+        {
+            // Exception handlers can be entered from anywhere, also
+            // from other methods.
+            if (_blocks.handlers[block]) {
+                _sync_from_shared();
+            }
+            _block_probe(block);
+            if (_try_ranges > 0) {
+                _sync_to_shared();
+            }
+        }
 
-        InstrumentationOptions(int ratio_, boolean has_custom_init_, boolean deterministic_)
+        private void _block_probe(int block)
         {
-            ratio = ratio_;
-            has_custom_init = has_custom_init_;
-            deterministic = deterministic_;
+            if (!_blocks.probes[block]) {
+                return;
+            }
+            // Method entry is the only location that is left out
+            // based on the instrumentation ratio.
+            if (block == 0 && _random.nextInt(100) >= _instrumentation_ratio) {
+                return;
+            }
+            if (_blocks.probe_budget >= 0) {
+                _probe_credit += _blocks.probe_budget;
+                if (_probe_credit < _blocks.probe_count) {
+                    return;
+                }
+                _probe_credit -= _blocks.probe_count;
+            }
+            _aflMaybeLog(block);
         }
 
-        InstrumentationOptions(InstrumentationOptions other)
+        @Override
+        public void visitTryCatchBlock(
+            Label start, Label end, Label handler, String type)
         {
-            this(other.ratio, other.has_custom_init, other.deterministic);
+            Integer starts = _try_range_changes.get(start);
+            _try_range_changes.put(start, (starts == null ? 0 : starts) + 1);
+            Integer ends = _try_range_changes.get(end);
+            _try_range_changes.put(end, (ends == null ? 0 : ends) - 1);
+            super.visitTryCatchBlock(start, end, handler, type);
         }
-}
-
-    static class InstrumentingMethodVisitor extends MethodVisitor
-    {
-        private boolean _has_custom_init;
-        private int _instrumentation_ratio;
-        private boolean _is_main;
-        private InstrumentationOptions _options;
-        private Random _random;
 
-        public InstrumentingMethodVisitor(
-            MethodVisitor mv_,
-            Random random,
-            InstrumentationOptions options,
-            boolean is_main)
+        @Override
+        public void visitLabel(Label label)
         {
-            super(Opcodes.ASM6, mv_);
-            _is_main = is_main;
-            _random = random;
-            _instrumentation_ratio = options.ratio;
-            _has_custom_init = options.has_custom_init;
+            Integer change = _try_range_changes.get(label);
+            if (change != null) {
+                _try_ranges += change;
+            }
+            super.visitLabel(label);
         }
 
-        private void _aflMaybeLog()
+        @Override
+        protected void visitBlockStart(int block)
         {
-            JavaAflInstrument.total_locations++;
-            int location_id = _random.nextInt(javafl.JavaAfl.map.length);
-            // + &JavaAfl.map
-            mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "map", "[B");
-            // + location_id
-            mv.visitLdcInsn(location_id);
-            // + JavaAfl.prev_location
-            mv.visitFieldInsn(GETSTATIC, "javafl/JavaAfl", "prev_location", "I");
-            // - 2 values (location_id, prev_location)
-            // + location_id ^ prev_location -> tuple_index
-            mv.visitInsn(IXOR);
-            // + &JavaAfl.map
-            // + tuple_index
-            mv.visitInsn(DUP2);
-            // - 2 values (&JavaAfl.map, tuple_index)
-            // + JavaAfl.map[tuple_index] -> previous_tuple_value
-            mv.visitInsn(BALOAD);
-            // + 1
-            mv.visitInsn(ICONST_1);
-            // - 2 values (1, previous_tuple_value)
-            // + 1 + previous_tuple_value -> new_tuple_value
-            mv.visitInsn(IADD);
-            // = (byte)new_tuple_value
-            mv.visitInsn(I2B);
-            // - 3 values (new_tuple_value, tuple_index, &JavaAfl.map)
-            // = new_tuple_value
-            mv.visitInsn(BASTORE);
-            // Stack modifications are now +-0 here.
+            // Stack map frames refer to uninitialized objects by the
+            // offset of their NEW instruction. The label of that
+            // offset is right before the instruction, so the probe
+            // can't go in between. Probes don't touch the stack, so
+            // the uninitialized object can just stay there while the
+            // probe runs.
+            if (_block_starts_with_new) {
+                _deferred_block = block;
+                return;
+            }
+            _begin_block(block);
+        }
 
-            // + location_id >> 1 = shifted_location
-            mv.visitLdcInsn(location_id >> 1);
-            // - 1 value (shifted_location)
-            mv.visitFieldInsn(PUTSTATIC, "javafl/JavaAfl", "prev_location", "I");
+        @Override
+        public void visitTypeInsn(int opcode, String type)
+        {
+            _block_starts_with_new = opcode == NEW;
+            super.visitTypeInsn(opcode, type);
+            _block_starts_with_new = false;
+            if (_deferred_block != null) {
+                _begin_block(_deferred_block);
+                _deferred_block = null;
+            }
         }
 
         @Override
-        public void visitCode()
+        public void visitMethodInsn(
+            int opcode, String owner, String name, String desc, boolean itf)
         {
-            mv.visitCode();
-            if (_is_main && !_has_custom_init) {
+            beginInstruction();
+            if (_blocks.cmplog && is_cmp_method(owner, name, desc)) {
+                // + receiver, argument
+                mv.visitInsn(DUP2);
+                // + site id
+                mv.visitLdcInsn(_cmp_id());
+                // - 3 values
                 mv.visitMethodInsn(
                     INVOKESTATIC,
                     "javafl/JavaAfl",
-                    "_before_main",
-                    "()V",
+                    "_cmp_objects",
+                    "(Ljava/lang/Object;Ljava/lang/Object;I)V",
                     false);
             }
-            if (_random.nextInt(100) < _instrumentation_ratio) {
-                _aflMaybeLog();
-            }
+            _sync_to_shared();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            _sync_from_shared();
         }
 
         @Override
-        public void visitJumpInsn(int opcode, Label label) {
-            mv.visitJumpInsn(opcode, label);
-            _aflMaybeLog();
-       }
-
-        @Override
-        public void visitLabel(Label label) {
-            mv.visitLabel(label);
-            _aflMaybeLog();
+        public void visitInvokeDynamicInsn(
+            String name, String desc, Handle bsm, Object... bsmArgs)
+        {
+            beginInstruction();
+            _sync_to_shared();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+            _sync_from_shared();
         }
 
         @Override
         public void visitInsn(int opcode)
         {
+            if (opcode == LCMP && _blocks.cmplog) {
+                beginInstruction();
+                // + site id
+                mv.visitLdcInsn(_cmp_id());
+                // - 5 values (site id, 2 longs)
+                // + Long.compare() of the longs
+                mv.visitMethodInsn(
+                    INVOKESTATIC, "javafl/JavaAfl", "_cmp_long", "(JJI)I", false);
+                return;
+            }
+            if ((opcode >= IRETURN && opcode <= RETURN) || opcode == ATHROW) {
+                beginInstruction();
+                _sync_to_shared();
+            }
             // Main gets special treatment in handling returns. It
             // can't return anything else than void:
             if (_is_main && opcode == RETURN) {
+                beginInstruction();
                 mv.visitMethodInsn(
                     INVOKESTATIC,
                     "javafl/JavaAfl",
@@ -185,7 +1536,54 @@ public class JavaAflInstrument
                     "()V",
                     false);
             }
-            mv.visitInsn(opcode);
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitFrame(
+            int type, int nLocal, Object[] local, int nStack, Object[] stack)
+        {
+            // Locals of the map and previous location are always set
+            // after the method entry. Frames are expanded in this
+            // mode, so the original locals can be padded to their
+            // maximum size and extra locals added after them.
+            int first_local = _state_local >= 0 ? _state_local : _map_local;
+            if (first_local < 0 || type != F_NEW) {
+                super.visitFrame(type, nLocal, local, nStack, stack);
+                return;
+            }
+            ArrayList<Object> locals = new ArrayList<Object>();
+            int slots = 0;
+            for (int i = 0; i < nLocal; i++) {
+                locals.add(local[i]);
+                slots++;
+                if (local[i] == LONG || local[i] == DOUBLE) {
+                    slots++;
+                }
+            }
+            for (; slots < first_local; slots++) {
+                locals.add(TOP);
+            }
+            if (_state_local >= 0) {
+                locals.add(THREAD_STATE);
+            }
+            locals.add("[B");
+            locals.add(INTEGER);
+            super.visitFrame(
+                type, locals.size(), locals.toArray(), nStack, stack);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            // Existing stack map frames stay valid, as probes are only
+            // added to the beginning of basic blocks and they leave
+            // the stack and local variables as they were. They just
+            // need some extra stack space.
+            if (_map_local >= 0) {
+                maxLocals = _prev_local + 1;
+            }
+            super.visitMaxs(maxStack + PROBE_STACK_SIZE, maxLocals);
         }
 
         @Override
@@ -205,14 +1603,19 @@ public class JavaAflInstrument
         ClassWriter _writer;
         InstrumentationOptions _options;
         Random _random;
+        ArrayList<MethodBlocks> _method_blocks;
+        int _method_index = 0;
+        int locations = 0;
 
         public InstrumentingClassVisitor(
             ClassWriter cv,
+            ArrayList<MethodBlocks> method_blocks,
             Random random,
             InstrumentationOptions options)
         {
             super(Opcodes.ASM6, cv);
             _writer = cv;
+            _method_blocks = method_blocks;
             _random = random;
             _options = options;
         }
@@ -225,16 +1628,20 @@ public class JavaAflInstrument
             String signature,
             String[] exceptions)
         {
+            MethodBlocks blocks = _method_blocks.get(_method_index);
+            _method_index++;
             MethodVisitor mv = cv.visitMethod(
                 access, name, desc, signature, exceptions);
             if (mv == null) {
                 return null;
             }
+            if (blocks.skipped && !is_main(name, access)) {
+                return mv;
+            }
 
             // Instrument all public static main functions with the
             // start-up and teardown instrumentation.
-            int public_static = Opcodes.ACC_STATIC | Opcodes.ACC_PUBLIC;
-            if (name.equals("main") && ((access & public_static) != 0)) {
+            if (is_main(name, access)) {
                 _writer.newMethod(
                     "javafl/JavaAfl",
                     "_before_main",
@@ -246,15 +1653,71 @@ public class JavaAflInstrument
                     "()V",
                     false);
                 mv = new InstrumentingMethodVisitor(
-                    mv, _random, _options, true);
+                    mv, this, blocks, _random, _options, true);
             } else {
                 mv = new InstrumentingMethodVisitor(
-                    mv, _random, _options, false);
+                    mv, this, blocks, _random, _options, false);
+            }
+            if (_options.split_compares && !blocks.skipped) {
+                mv = new JavaAflCompareSplitter(mv);
             }
             return mv;
         }
     }
 
+    static final String NO_INSTRUMENT = "Ljavafl/NoInstrument;";
+
+    // Every pass over a class must read it in the same way so that the
+    // block numbering matches between them.
+    private static int _reader_flags(InstrumentationOptions options)
+    {
+        int flags = ClassReader.SKIP_DEBUG;
+        if ((options.method_locals || options.thread_aware)
+            && !options.computes_frames()) {
+            flags |= ClassReader.EXPAND_FRAMES;
+        }
+        return flags;
+    }
+
+    /**
+     * Adds the probes of a class to the stable probe location
+     * allocation.
+     */
+    private static void _collect_probes(
+        byte[] input, InstrumentationOptions options)
+    {
+        ClassReader reader;
+        try {
+            reader = new ClassReader(input);
+        } catch (java.lang.IllegalArgumentException e) {
+            return;
+        }
+        if (is_instrumented(reader)
+            || options.filter.excludes_class(reader.getClassName())) {
+            return;
+        }
+        BlockAnalyzingClassVisitor analyzer = new BlockAnalyzingClassVisitor(
+            options);
+        try {
+            reader.accept(analyzer, _reader_flags(options));
+        } catch (RuntimeException e) {
+            // Errors get reported when the class is instrumented.
+            return;
+        }
+        for (MethodBlocks method : analyzer.methods) {
+            if (!method.skipped) {
+                options.probe_ids.add(
+                    method.key, method.probes, method.probe_edges);
+            }
+        }
+    }
+
+    private static boolean is_main(String name, int access)
+    {
+        int public_static = Opcodes.ACC_STATIC | Opcodes.ACC_PUBLIC;
+        return name.equals("main") && ((access & public_static) != 0);
+    }
+
     private static boolean is_instrumented(ClassReader reader)
     {
         // It would be sooo much more easy if Java had memmem() like
@@ -301,7 +1764,8 @@ public class JavaAflInstrument
             File output_target_file = new File(
                 output_target_base, source_file.getName());
             (new FileOutputStream(output_target_file)).write(instrumented.data);
-            total_classfiles++;
+            total_classfiles.incrementAndGet();
+            classfile_locations.addAndGet(instrumented.locations);
         } catch (IOException e) {
             System.err.println("Unable to instrument " + filename + ": " + e);
         }
@@ -319,7 +1783,31 @@ public class JavaAflInstrument
     private static InstrumentedClass instrument_class(
         byte[] input, String filename, InstrumentationOptions options)
     {
-        int old_locations = JavaAflInstrument.total_locations;
+        if (_cache == null || !JavaAflCache.is_cacheable(filename, options)) {
+            return instrument_class_uncached(input, filename, options);
+        }
+        String key = _cache.key(input, options);
+        InstrumentedClass cached = _cache.get(key, input);
+        if (cached != null) {
+            total_locations.addAndGet(cached.locations);
+            if (options.report != null) {
+                options.report.add_cached(filename, input, cached);
+            }
+            return cached;
+        }
+        InstrumentedClass result = instrument_class_uncached(
+            input, filename, options);
+        // Classes that could not be instrumented are not cached, as
+        // they would just be copies of the input.
+        if (result.data != input) {
+            _cache.put(key, input, result);
+        }
+        return result;
+    }
+
+    static InstrumentedClass instrument_class_uncached(
+        byte[] input, String filename, InstrumentationOptions options)
+    {
         InstrumentationOptions try_options = new InstrumentationOptions(
             options);
         // Some relatively shortlist of instrumentation ratios that
@@ -327,12 +1815,33 @@ public class JavaAflInstrument
         int[] max_ratios = {80, 65, 50, 35, 25, 15, 10, 5, 2, 1, 0};
         for (int i = 0; i < 100; i++) {
             try {
-                return try_instrument_class(input, filename, try_options);
+                InstrumentedClass result = try_instrument_class(
+                    input, filename, try_options);
+                // Locations are only accounted for the attempt that
+                // actually ends up in the output.
+                total_locations.addAndGet(result.locations);
+                if (options.report != null) {
+                    options.report.add(
+                        filename, input, result, try_options, options.ratio);
+                }
+                return result;
             } catch (RetryableInstrumentationException e) {
-                JavaAflInstrument.total_locations = old_locations;
+                if (try_options.split_compares) {
+                    // Split comparisons are the first thing to go.
+                    try_options.split_compares = false;
+                    System.err.println(
+                        "Instrumenting " + filename
+                        + " without splitting comparisons!");
+                    continue;
+                }
                 if (try_options.ratio == 0) {
                     System.err.println(
                         "Unable instrument " + filename + " at all!");
+                    e.class_data.skipped("too large with any ratio");
+                    if (options.report != null) {
+                        options.report.add(
+                            filename, input, e.class_data, try_options, options.ratio);
+                    }
                     return e.class_data;
                 }
                 for (int new_ratio : max_ratios) {
@@ -359,7 +1868,7 @@ public class JavaAflInstrument
         // Work around ClassReader bug on zero length file:
         if (input.length == 0) {
             System.err.println("Empty file: " + filename);
-            return new InstrumentedClass(input);
+            return new InstrumentedClass(input).skipped("empty file");
         }
         ClassReader reader;
         try {
@@ -367,7 +1876,7 @@ public class JavaAflInstrument
         } catch (java.lang.IllegalArgumentException e) {
             System.err.println(
                 "File " + filename + " is not a valid class file.");
-            return new InstrumentedClass(input);
+            return new InstrumentedClass(input).skipped("not a valid class file");
         }
         String name = reader.getClassName();
         File directory_file = new File(name).getParentFile();
@@ -377,33 +1886,63 @@ public class JavaAflInstrument
         }
         if (is_instrumented(reader)) {
             System.err.println("Already instrumented " + filename);
-            total_classfiles--;
-            return new InstrumentedClass(directory, input);
+            total_classfiles.decrementAndGet();
+            return new InstrumentedClass(directory, input).skipped(
+                "already instrumented");
+        }
+        if (options.filter.excludes_class(name)) {
+            return new InstrumentedClass(directory, input).skipped("excluded");
+        }
+        options.hierarchy.add(reader);
+        ClassWriter writer;
+        if (options.computes_frames()) {
+            writer = new HierarchyClassWriter(options.hierarchy);
+        } else {
+            writer = new ClassWriter(reader, 0);
         }
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
         Random random;
         if (options.deterministic) {
             random = new Random(java.util.Arrays.hashCode(input));
         } else {
             random = new Random();
         }
-        ClassVisitor visitor = new InstrumentingClassVisitor(
-            writer, random, options);
+        BlockAnalyzingClassVisitor analyzer = new BlockAnalyzingClassVisitor(
+            options);
+        InstrumentingClassVisitor visitor = new InstrumentingClassVisitor(
+            writer, analyzer.methods, random, options);
         try {
-            reader.accept(visitor, ClassReader.SKIP_DEBUG);
+            int flags = _reader_flags(options);
+            reader.accept(analyzer, flags);
+            if (!analyzer.changes_class()) {
+                return new InstrumentedClass(directory, input).skipped(
+                    "no probes");
+            }
+            reader.accept(visitor, flags);
         } catch (java.lang.TypeNotPresentException e) {
+            if (options.split_compares && !options.compute_frames) {
+                // Only split comparisons needed the class hierarchy
+                // for new frames. Without them the frames of the
+                // input are kept as they are.
+                throw new RetryableInstrumentationException(
+                    new InstrumentedClass(directory, input));
+            }
             System.err.println(
                 "Error while processing " + filename + ": " + e.getMessage());
-            return new InstrumentedClass(directory, input);
+            return new InstrumentedClass(directory, input).skipped(
+                "error: " + e.getMessage());
         } catch (java.lang.IllegalArgumentException e) {
             System.err.println(
                 "Error while processing " + filename + ": " + e.getMessage());
-            return new InstrumentedClass(directory, input);
+            return new InstrumentedClass(directory, input).skipped(
+                "error: " + e.getMessage());
         }
 
         try {
             writer.newUTF8(javafl.JavaAfl.INSTRUMENTATION_MARKER);
-            return new InstrumentedClass(directory, writer.toByteArray());
+            InstrumentedClass result = new InstrumentedClass(
+                directory, writer.toByteArray(), visitor.locations);
+            result.methods = analyzer.methods;
+            return result;
         } catch (java.lang.IndexOutOfBoundsException e) {
             // It's possible that the instrumentation makes the method
             // larger than 64 kilobytes that is the limit that Java
@@ -413,36 +1952,164 @@ public class JavaAflInstrument
         }
     }
 
-    private static File _instrument_jar(
-        JarFile input, File output, InstrumentationOptions options) throws IOException
+    static class PendingJarEntry
     {
-        FileOutputStream output_jarfile = new FileOutputStream(output);
-        JarOutputStream jar = new JarOutputStream(output_jarfile);
-        Enumeration<? extends JarEntry> entries = input.entries();
+        String name;
+        // Entry in the input file when it can be copied as it is.
+        JavaAflZip.Entry raw;
+        byte[] input;
+        ForkJoinTask<InstrumentedClass> task;
 
-        while (entries.hasMoreElements()) {
-            JarEntry entry = entries.nextElement();
-            InputStream stream = input.getInputStream(entry);
+        PendingJarEntry(
+            String name_,
+            JavaAflZip.Entry raw_,
+            byte[] input_,
+            ForkJoinTask<InstrumentedClass> task_)
+        {
+            name = name_;
+            raw = raw_;
+            input = input_;
+            task = task_;
+        }
+    }
 
-            if (entry.isDirectory()) {
-                jar.putNextEntry(new JarEntry(entry));
-                continue;
-            }
-            InstrumentedClass instrumented = instrument_class(
-                input_stream_to_bytes(stream),
-                input.getName() + "/" + entry.getName(),
-                options);
-            byte[] instrumented_class = instrumented.data;
-            jar.putNextEntry(new JarEntry(entry.getName()));
-            if (instrumented_class == null) {
-                jar.write(input_stream_to_bytes(stream));
+    /**
+     * Writes the entry and returns the number of locations in it.
+     */
+    private static int _write_jar_entry(
+        JavaAflZip.Writer jar,
+        JavaAflZip.Reader reader,
+        PendingJarEntry pending) throws IOException
+    {
+        if (pending.task == null) {
+            if (pending.raw != null) {
+                jar.copy(reader, pending.raw);
             } else {
-                jar.write(instrumented_class);
+                jar.add(pending.name, pending.input);
+            }
+            return 0;
+        }
+        InstrumentedClass instrumented = pending.task.join();
+        if (pending.raw == null) {
+            jar.add(pending.name, instrumented.data);
+        } else if (instrumented.data == pending.input) {
+            // Nothing changed, so there is no need to compress the
+            // data again.
+            jar.copy(reader, pending.raw);
+        } else {
+            jar.add(pending.raw, instrumented.data);
+        }
+        return instrumented.locations;
+    }
+
+    private static ForkJoinTask<InstrumentedClass> _submit_class(
+        final byte[] data, final String filename, InstrumentationOptions options)
+    {
+        ForkJoinTask<InstrumentedClass> task;
+        if (_pool == null) {
+            task = ForkJoinTask.adapt(
+                () -> instrument_class(data, filename, options));
+            task.invoke();
+        } else {
+            task = _pool.submit(
+                () -> instrument_class(data, filename, options));
+        }
+        return task;
+    }
+
+    /**
+     * Instruments the given jar file so that only class files are
+     * decompressed. Everything else, and classes that do not change,
+     * is copied as it is in the input file.
+     */
+    private static void _instrument_jar(
+        JavaAflZip.Reader reader, File input, File output, InstrumentationOptions options)
+        throws IOException
+    {
+        JavaAflZip.Writer jar = null;
+        try {
+            jar = new JavaAflZip.Writer(output);
+            jar.set_comment(reader.comment);
+            // Entries are read and written in the original order, but
+            // in parallel mode there can be a limited number of them
+            // being instrumented at the same time. The window keeps
+            // the memory usage bounded for huge jar files.
+            int window = 0;
+            if (_pool != null) {
+                window = _pool.getParallelism() * 4;
+            }
+            ArrayDeque<PendingJarEntry> pending = new ArrayDeque<PendingJarEntry>();
+            int locations = 0;
+            for (JavaAflZip.Entry entry : reader.entries) {
+                byte[] data = null;
+                ForkJoinTask<InstrumentedClass> task = null;
+                if (entry.name.endsWith(".class")) {
+                    data = reader.read(entry);
+                    task = _submit_class(
+                        data, input.getPath() + "/" + entry.name, options);
+                }
+                pending.addLast(new PendingJarEntry(entry.name, entry, data, task));
+                while (pending.size() > window) {
+                    locations += _write_jar_entry(
+                        jar, reader, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                locations += _write_jar_entry(jar, reader, pending.removeFirst());
+            }
+            add_JavaAfl_to_jar(jar, locations, options);
+        } finally {
+            if (jar != null) {
+                jar.close();
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Instruments jar files that the raw copying does not support by
+     * decompressing and compressing all entries.
+     */
+    private static void _instrument_jar_fully(
+        JarFile input, File output, InstrumentationOptions options) throws IOException
+    {
+        JavaAflZip.Writer jar = new JavaAflZip.Writer(output);
+        try {
+            String comment = input.getComment();
+            if (comment != null) {
+                jar.set_comment(
+                    comment.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            }
+            int window = 0;
+            if (_pool != null) {
+                window = _pool.getParallelism() * 4;
+            }
+            ArrayDeque<PendingJarEntry> pending = new ArrayDeque<PendingJarEntry>();
+            int locations = 0;
+            Enumeration<? extends JarEntry> entries = input.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                byte[] data = new byte[0];
+                ForkJoinTask<InstrumentedClass> task = null;
+                if (!entry.isDirectory()) {
+                    data = input_stream_to_bytes(input.getInputStream(entry));
+                    task = _submit_class(
+                        data, input.getName() + "/" + entry.getName(), options);
+                }
+                pending.addLast(
+                    new PendingJarEntry(entry.getName(), null, data, task));
+                while (pending.size() > window) {
+                    locations += _write_jar_entry(
+                        jar, null, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                locations += _write_jar_entry(jar, null, pending.removeFirst());
             }
+            add_JavaAfl_to_jar(jar, locations, options);
+        } finally {
+            jar.close();
         }
-        add_JavaAfl_to_jar(jar);
-        jar.close();
-        return output;
     }
 
     private static void _instrument_file(
@@ -456,13 +2123,31 @@ public class JavaAflInstrument
         File physical_output = null;
         File rename_target = new File(output_dir, source_file.getName());
         try {
-            JarFile jar_input = new JarFile(source_file, false);
+            if (!source_file.isFile()) {
+                throw new java.io.FileNotFoundException(filename);
+            }
             physical_output = File.createTempFile(
                 ".java-afl-new-", ".jar", output_dir);
-            _instrument_jar(
-                jar_input, physical_output, options);
+            // Unsupported jar files are found when they are opened,
+            // so that no class gets instrumented and counted twice.
+            JavaAflZip.Reader reader;
+            try {
+                reader = new JavaAflZip.Reader(source_file);
+            } catch (java.util.zip.ZipException e) {
+                reader = null;
+            }
+            if (reader != null) {
+                _instrument_jar(reader, source_file, physical_output, options);
+            } else {
+                JarFile jar_input = new JarFile(source_file, false);
+                try {
+                    _instrument_jar_fully(jar_input, physical_output, options);
+                } finally {
+                    jar_input.close();
+                }
+            }
             physical_output.renameTo(rename_target);
-            total_jarfiles++;
+            total_jarfiles.incrementAndGet();
         } catch (java.io.FileNotFoundException e) {
             System.err.println(
                 "File " + filename + " is not a valid file: " + e.getMessage());
@@ -474,7 +2159,41 @@ public class JavaAflInstrument
         }
     }
 
-    private static byte[] input_stream_to_bytes(InputStream stream)
+    /**
+     * Passes each class file in the given input file to the consumer.
+     */
+    private static void _index_file(
+        String filename, java.util.function.Consumer<byte[]> consumer)
+    {
+        try {
+            if (filename.endsWith(".class")) {
+                FileInputStream input = new FileInputStream(filename);
+                try {
+                    consumer.accept(input_stream_to_bytes(input));
+                } finally {
+                    input.close();
+                }
+                return;
+            }
+            JarFile jar = new JarFile(filename, false);
+            try {
+                Enumeration<? extends JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.getName().endsWith(".class")) {
+                        consumer.accept(
+                            input_stream_to_bytes(jar.getInputStream(entry)));
+                    }
+                }
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            // Errors get reported when the file is instrumented.
+        }
+    }
+
+    static byte[] input_stream_to_bytes(InputStream stream)
     {
         ByteArrayOutputStream bytestream = new ByteArrayOutputStream();
         byte[] buffer = new byte[4096];
@@ -490,45 +2209,150 @@ public class JavaAflInstrument
         return bytestream.toByteArray();
     }
 
-    private static void add_JavaAfl_to_jar(JarOutputStream jar)
+    // Classes that instrumented code needs at run time.
+    static final String[] RUNTIME_CLASSES = {
+        "javafl/CustomInit.class",
+        "javafl/NoInstrument.class",
+        "javafl/fuzz.class",
+        "javafl/fuzz$ArrayCallback.class",
+        "javafl/fuzz$BufferCallback.class",
+        "javafl/JavaAfl.class",
+        "javafl/JavaAfl$1.class",
+        "javafl/JavaAfl$ThreadState.class",
+        "javafl/JavaAfl$ThreadStates.class",
+        "javafl/Warmup.class",
+        "javafl/Warmup$1.class",
+        "javafl/Telemetry.class",
+    };
+
+    // Counts of the map size record that a later run into the same
+    // directory adds to, and sizes of which the record keeps the
+    // largest.
+    static private final String[] MAP_SIZE_COUNTS = {
+        "locations", "direct-map-locations", "dirty-tracking-locations",
+    };
+    static private final String[] MAP_SIZE_LIMITS = {
+        "location-range", "min-map-size",
+    };
+
+    /**
+     * Records the number of locations for choosing the map size at
+     * run time, and the map size that they are spread over. The
+     * numbers of locations with --direct-map and --dirty-tracking
+     * probes tell the run time how the Java map needs to be sent.
+     * Locations of --stable-ids are placed to avoid collisions in a
+     * map of this size, so the map should not get smaller than that.
+     * The values of the previous record are added to, unless it is
+     * null.
+     */
+    private static byte[] _map_size_properties(
+        int locations,
+        InstrumentationOptions options,
+        java.util.Properties previous)
     {
-        String[] filenames = {
-            "javafl/CustomInit.class",
-            "javafl/fuzz.class",
-            "javafl/JavaAfl.class",
-            "javafl/JavaAfl$1.class",
+        long[] counts = {locations, 0, 0};
+        if (options.direct_map && !options.thread_aware) {
+            counts[1] = locations;
+        } else if (options.dirty_tracking && !options.thread_aware) {
+            counts[2] = locations;
+        }
+        long[] limits = {
+            javafl.JavaAfl.map.length,
+            options.probe_ids != null ? javafl.JavaAfl.map.length : 0,
         };
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (previous != null) {
+                counts[i] += Long.parseLong(
+                    previous.getProperty(MAP_SIZE_COUNTS[i], "0"));
+            }
+            result.append(MAP_SIZE_COUNTS[i] + "=" + counts[i] + "\n");
+        }
+        for (int i = 0; i < limits.length; i++) {
+            if (previous != null) {
+                limits[i] = Math.max(
+                    limits[i],
+                    Long.parseLong(previous.getProperty(MAP_SIZE_LIMITS[i], "0")));
+            }
+            result.append(MAP_SIZE_LIMITS[i] + "=" + limits[i] + "\n");
+        }
+        try {
+            return result.toString().getBytes("ISO-8859-1");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the map size record of an earlier run into the same
+     * directory, or null if there is none or it can't be read.
+     */
+    private static java.util.Properties _read_map_size_properties(File file)
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+        java.util.Properties properties = new java.util.Properties();
+        try {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                properties.load(input);
+            } finally {
+                input.close();
+            }
+            for (String name : MAP_SIZE_COUNTS) {
+                Long.parseLong(properties.getProperty(name, "0"));
+            }
+            for (String name : MAP_SIZE_LIMITS) {
+                Long.parseLong(properties.getProperty(name, "0"));
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Replacing unreadable " + file + ": " + e);
+            return null;
+        }
+        return properties;
+    }
+
+    private static void add_JavaAfl_to_jar(
+        JavaAflZip.Writer jar, int locations, InstrumentationOptions options)
+    {
         try {
             try {
-                jar.putNextEntry(new JarEntry("javafl/"));
+                jar.add("javafl/", new byte[0]);
             } catch (java.util.zip.ZipException e) {
                 System.err.println("Jar already has javafl/");
             }
-            for (String filename : filenames) {
+            for (String filename : RUNTIME_CLASSES) {
                 try {
-                    jar.putNextEntry(new JarEntry(filename));
-                    jar.write(
+                    jar.add(
+                        filename,
                         input_stream_to_bytes(
                             (InputStream)JavaAflInstrument.class.getResource("/" + filename).getContent()));
                 } catch (java.util.zip.ZipException e) {
                     System.err.println("Jar already has " + filename);
                 }
             }
+            try {
+                jar.add(
+                    javafl.JavaAfl.MAP_SIZE_RESOURCE,
+                    _map_size_properties(locations, options, null));
+            } catch (java.util.zip.ZipException e) {
+                System.err.println(
+                    "Jar already has " + javafl.JavaAfl.MAP_SIZE_RESOURCE);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void add_JavaAfl_to_directory(File directory)
+    /**
+     * Returns the map size record that ends up in the directory.
+     */
+    private static java.util.Properties add_JavaAfl_to_directory(
+        File directory, int locations, InstrumentationOptions options)
     {
-        String[] filenames = {
-            "javafl/CustomInit.class",
-            "javafl/fuzz.class",
-            "javafl/JavaAfl.class",
-            "javafl/JavaAfl$1.class",
-        };
         try {
-            for (String filename : filenames) {
+            for (String filename : RUNTIME_CLASSES) {
                 File target = new File(directory, filename);
                 File class_directory = target.getParentFile();
                 if (!class_directory.exists()) {
@@ -539,15 +2363,51 @@ public class JavaAflInstrument
                     input_stream_to_bytes(
                         (InputStream)JavaAflInstrument.class.getResource("/" + filename).getContent()));
             }
+            // Classes of earlier runs into the same directory stay
+            // there, so their locations still count.
+            File record = new File(directory, javafl.JavaAfl.MAP_SIZE_RESOURCE);
+            byte[] properties = _map_size_properties(
+                locations, options, _read_map_size_properties(record));
+            FileOutputStream output = new FileOutputStream(record);
+            try {
+                output.write(properties);
+            } finally {
+                output.close();
+            }
+            java.util.Properties result = new java.util.Properties();
+            result.load(new java.io.ByteArrayInputStream(properties));
+            return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns the map size that the run time picks for the classes of
+     * the output directory and the jars of this run, unless the
+     * fuzzer or JAVA_AFL_MAP_SIZE asks for another one.
+     */
+    private static int _output_map_size(
+        java.util.Properties record, InstrumentationOptions options)
+    {
+        // Each instrumented jar has a record of its own.
+        long locations = Long.parseLong(record.getProperty("locations", "0"))
+            + total_locations.get() - classfile_locations.get();
+        long location_range = Math.max(
+            Long.parseLong(record.getProperty("location-range", "0")),
+            javafl.JavaAfl.map.length);
+        long min_map_size = Math.max(
+            Long.parseLong(record.getProperty("min-map-size", "0")),
+            options.probe_ids != null ? javafl.JavaAfl.map.length : 0);
+        return javafl.JavaAfl.map_size_for(
+            javafl.JavaAfl.needed_map_size(
+                locations, location_range, min_map_size));
+    }
+
     private static int usage()
     {
         System.err.println(
-            "Usage: instrumentor [--custom-init]|[--deterministic]|[--] output-dir input.jar|input.class...");
+            "Usage: instrumentor [--custom-init]|[--deterministic]|[--jobs N]|[--cache dir]|[--compute-frames]|[--method-locals]|[--thread-aware]|[--direct-map]|[--dirty-tracking]|[--cmplog]|[--split-compares]|[--report file.json|file.csv]|[--include rules]|[--exclude rules]|[--skip-synthetic]|[--skip-clinit]|[--stable-ids]|[--] output-dir input.jar|input.class...");
         return 1;
     }
 
@@ -559,6 +2419,9 @@ public class JavaAflInstrument
 
         InstrumentationOptions options = new InstrumentationOptions(
             100, false, false);
+        int jobs = 1;
+        String cache_dir = System.getenv("JAVA_AFL_CACHE_DIR");
+        String report_file = null;
         boolean parsing = true;
         int arg_index = -1;
         while (parsing) {
@@ -570,6 +2433,67 @@ public class JavaAflInstrument
                 options.has_custom_init = true;
             } else if (argument.equals("--deterministic")) {
                 options.deterministic = true;
+            } else if (argument.equals("--jobs")) {
+                arg_index++;
+                if (args.length <= arg_index) {
+                    System.exit(usage());
+                }
+                try {
+                    jobs = Integer.parseInt(args[arg_index]);
+                } catch (NumberFormatException e) {
+                    System.err.println("--jobs needs a number: " + args[arg_index]);
+                    System.exit(usage());
+                }
+                if (jobs < 1) {
+                    System.err.println("--jobs must be at least 1!");
+                    System.exit(1);
+                }
+            } else if (argument.equals("--compute-frames")) {
+                options.compute_frames = true;
+            } else if (argument.equals("--method-locals")) {
+                options.method_locals = true;
+            } else if (argument.equals("--thread-aware")) {
+                options.thread_aware = true;
+            } else if (argument.equals("--direct-map")) {
+                options.direct_map = true;
+            } else if (argument.equals("--dirty-tracking")) {
+                options.dirty_tracking = true;
+            } else if (argument.equals("--cmplog")) {
+                options.cmplog = true;
+            } else if (argument.equals("--split-compares")) {
+                options.split_compares = true;
+            } else if (argument.equals("--report")) {
+                arg_index++;
+                if (args.length <= arg_index) {
+                    System.exit(usage());
+                }
+                report_file = args[arg_index];
+                options.report = new JavaAflReport();
+            } else if (argument.equals("--include")) {
+                arg_index++;
+                if (args.length <= arg_index) {
+                    System.exit(usage());
+                }
+                options.filter.include(args[arg_index]);
+            } else if (argument.equals("--exclude")) {
+                arg_index++;
+                if (args.length <= arg_index) {
+                    System.exit(usage());
+                }
+                options.filter.exclude(args[arg_index]);
+            } else if (argument.equals("--skip-synthetic")) {
+                options.filter.skip_synthetic = true;
+            } else if (argument.equals("--skip-clinit")) {
+                options.filter.skip_clinit = true;
+            } else if (argument.equals("--stable-ids")) {
+                options.probe_ids = new JavaAflProbeIds(
+                    javafl.JavaAfl.map.length);
+            } else if (argument.equals("--cache")) {
+                arg_index++;
+                if (args.length <= arg_index) {
+                    System.exit(usage());
+                }
+                cache_dir = args[arg_index];
             } else if (argument.equals("-h") || argument.equals("--help")) {
                 System.exit(usage());
             } else if (argument.equals("--")) {
@@ -595,6 +2519,14 @@ public class JavaAflInstrument
             System.exit(1);
         }
 
+        if (cache_dir != null) {
+            if (!options.deterministic) {
+                System.err.println(
+                    "Instrumentation cache is only used with --deterministic!");
+            }
+            _cache = new JavaAflCache(new File(cache_dir));
+        }
+
         File output_dir = new File(args[arg_index]);
         if (!output_dir.exists()) {
             if (!output_dir.mkdirs()) {
@@ -607,17 +2539,58 @@ public class JavaAflInstrument
                 "Output directory " + output_dir + " is not a directory!");
             return;
         }
-        for (int i = arg_index + 1; i < args.length; i++) {
-            _instrument_file(output_dir, args[i], options);
+        if (jobs > 1) {
+            _pool = new ForkJoinPool(jobs);
+        }
+        if (options.computes_frames()) {
+            // Frame computation needs to know the common super classes
+            // of classes that can reside in any of the input files.
+            for (int i = arg_index + 1; i < args.length; i++) {
+                _index_file(args[i], options.hierarchy::add);
+            }
+        }
+        if (options.probe_ids != null) {
+            // Stable probe locations are spread over the map knowing
+            // all probes of all input files.
+            for (int i = arg_index + 1; i < args.length; i++) {
+                _index_file(args[i], data -> _collect_probes(data, options));
+            }
+            options.probe_ids.allocate();
+        }
+        if (_pool != null) {
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (int i = arg_index + 1; i < args.length; i++) {
+                final String filename = args[i];
+                tasks.add(_pool.submit(
+                    () -> _instrument_file(output_dir, filename, options)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            _pool.shutdown();
+        } else {
+            for (int i = arg_index + 1; i < args.length; i++) {
+                _instrument_file(output_dir, args[i], options);
+            }
         }
-        if (total_classfiles > 0) {
-            add_JavaAfl_to_directory(output_dir);
+        java.util.Properties record = new java.util.Properties();
+        if (total_classfiles.get() > 0) {
+            record = add_JavaAfl_to_directory(
+                output_dir, classfile_locations.get(), options);
         }
         System.out.println(
             "Output files are available at " + output_dir.getCanonicalPath());
         System.out.println(
-            "Instrumented " + total_classfiles + " .class files and "
-            + total_jarfiles + " .jar files with "
-            + total_locations + " locations.");
+            "Instrumented " + total_classfiles.get() + " .class files and "
+            + total_jarfiles.get() + " .jar files with "
+            + total_locations.get() + " locations.");
+        if (options.probe_ids != null) {
+            System.out.println(options.probe_ids.report());
+        }
+        if (options.report != null) {
+            options.report.write(
+                report_file, _output_map_size(record, options), options.probe_ids);
+            System.out.println("Instrumentation report is at " + report_file);
+        }
     }
 }
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stable map locations for probes.
+ *
+ * A location is a hash of the class name, method name and descriptor
+ * and the basic block number, so it stays the same as long as the
+ * method does. Random locations change whenever anything in the class
+ * changes, which makes old corpora look different to afl.
+ *
+ * When all classes are known beforehand, allocate() lets each probe
+ * take the first of a few alternative hashes that does not make the
+ * known edges inside its method collide with edges that are already
+ * placed. Methods are placed in name order, so a changed method only
+ * moves the probes whose edges its new edges take over. Edges between
+ * methods are not known.
+ */
+public class JavaAflProbeIds
+{
+    // Number of alternative locations that each probe can get.
+    static private final int CANDIDATES = 8;
+
+    private int _map_size;
+    // Method key -> probes, and edges between probes as from, to pairs.
+    private TreeMap<String, boolean[]> _probes = new TreeMap<String, boolean[]>();
+    private HashMap<String, int[]> _edges = new HashMap<String, int[]>();
+    // Method key -> location of each block.
+    private HashMap<String, int[]> _allocated = new HashMap<String, int[]>();
+
+    private int _probe_count = 0;
+    private int _edge_count = 0;
+    private int _colliding_edges = 0;
+
+    JavaAflProbeIds(int map_size)
+    {
+        _map_size = map_size;
+    }
+
+    static private int _hash(String method_key, int block, int salt, int map_size)
+    {
+        int hash = (method_key + "#" + block).hashCode() + salt * 0x9e3779b9;
+        // Finalization step of MurmurHash3, as String.hashCode() of
+        // similar names only differs in its lowest bits.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % map_size;
+    }
+
+    static private int _edge(int from, int to)
+    {
+        return to ^ (from >> 1);
+    }
+
+    /**
+     * Returns the location of the probe at the beginning of the given
+     * block.
+     */
+    int id(String method_key, int block)
+    {
+        int[] locations = _allocated.get(method_key);
+        if (locations != null && block < locations.length) {
+            return locations[block];
+        }
+        return _hash(method_key, block, 0, _map_size);
+    }
+
+    /**
+     * Returns the location of a comparison for --cmplog. These are
+     * always derived from the method, as comparisons are not edges
+     * that could collide.
+     */
+    static int site_id(String method_key, int site, int range)
+    {
+        return _hash(method_key + "#cmp", site, 0, range);
+    }
+
+    boolean is_allocated()
+    {
+        return !_allocated.isEmpty();
+    }
+
+    /**
+     * Records the probes of a method for allocate(). The same method
+     * from a later input file is ignored.
+     */
+    synchronized void add(String method_key, boolean[] probes, int[] edges)
+    {
+        if (!_probes.containsKey(method_key)) {
+            _probes.put(method_key, probes);
+            _edges.put(method_key, edges);
+        }
+    }
+
+    /**
+     * Returns the edges that start or end at each block as indexes to
+     * the from, to pairs.
+     */
+    static private int[][] _incident_edges(int blocks, int[] edges)
+    {
+        int[] counts = new int[blocks];
+        for (int i = 0; i < edges.length; i += 2) {
+            counts[edges[i]]++;
+            if (edges[i + 1] != edges[i]) {
+                counts[edges[i + 1]]++;
+            }
+        }
+        int[][] result = new int[blocks][];
+        for (int block = 0; block < blocks; block++) {
+            result[block] = new int[counts[block]];
+            counts[block] = 0;
+        }
+        for (int i = 0; i < edges.length; i += 2) {
+            result[edges[i]][counts[edges[i]]++] = i;
+            if (edges[i + 1] != edges[i]) {
+                result[edges[i + 1]][counts[edges[i + 1]]++] = i;
+            }
+        }
+        return result;
+    }
+
+    void allocate()
+    {
+        BitSet used_edges = new BitSet(_map_size);
+        for (Map.Entry<String, boolean[]> method : _probes.entrySet()) {
+            String key = method.getKey();
+            boolean[] probes = method.getValue();
+            int[] edges = _edges.get(key);
+            int[][] incident = _incident_edges(probes.length, edges);
+            int[] locations = new int[probes.length];
+            boolean[] placed = new boolean[probes.length];
+            for (int block = 0; block < probes.length; block++) {
+                if (!probes[block]) {
+                    continue;
+                }
+                // Only edges whose other end is already placed can be
+                // checked. The rest get checked when that end is.
+                placed[block] = true;
+                int best = -1;
+                int best_cost = Integer.MAX_VALUE;
+                for (int salt = 0; salt < CANDIDATES && best_cost > 0; salt++) {
+                    int location = _hash(key, block, salt, _map_size);
+                    locations[block] = location;
+                    // Probes sharing a location don't matter to afl
+                    // as such, and moving them for that made more
+                    // probes move when other classes changed.
+                    int cost = 0;
+                    for (int i : incident[block]) {
+                        int from = edges[i];
+                        int to = edges[i + 1];
+                        if (placed[from] && placed[to]
+                            && used_edges.get(_edge(locations[from], locations[to]))) {
+                            cost++;
+                        }
+                    }
+                    if (cost < best_cost) {
+                        best = location;
+                        best_cost = cost;
+                    }
+                }
+                locations[block] = best;
+                _probe_count++;
+                for (int i : incident[block]) {
+                    int from = edges[i];
+                    int to = edges[i + 1];
+                    if (placed[from] && placed[to]) {
+                        int edge = _edge(locations[from], locations[to]);
+                        _edge_count++;
+                        if (used_edges.get(edge)) {
+                            _colliding_edges++;
+                        }
+                        used_edges.set(edge);
+                    }
+                }
+            }
+            _allocated.put(key, locations);
+        }
+    }
+
+    int edge_count()
+    {
+        return _edge_count;
+    }
+
+    int colliding_edges()
+    {
+        return _colliding_edges;
+    }
+
+    // Expected number of values that land on an already taken slot
+    // when n values are spread randomly over m slots.
+    private double _random_collisions(int n)
+    {
+        double m = _map_size;
+        return n - m * (1 - Math.pow(1 - 1 / m, n));
+    }
+
+    static private String _percentage(double part, int total)
+    {
+        if (total == 0) {
+            return "0.0%";
+        }
+        return String.format("%.1f%%", 100.0 * part / total);
+    }
+
+    String report()
+    {
+        return "Allocated " + _probe_count + " stable probe locations in a map of "
+            + _map_size + ".\n"
+            + "Known edges: " + _edge_count + ", colliding: " + _colliding_edges
+            + " (" + _percentage(_colliding_edges, _edge_count)
+            + "), expected with random locations: "
+            + Math.round(_random_collisions(_edge_count))
+            + " (" + _percentage(_random_collisions(_edge_count), _edge_count) + ").";
+    }
+}
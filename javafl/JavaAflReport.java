@@ -0,0 +1,349 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Statistics of the instrumentation for --report: probes and code
+ * sizes of each class and method, requested instrumentation ratios
+ * and the share of probes that each class and method actually got,
+ * classes that were left as they are and why, and an
+ * estimate of how full the map gets. Written as JSON, or as CSV when
+ * the file name ends with .csv. CSV files end with a row of totals.
+ */
+public class JavaAflReport
+{
+    static private class MethodReport
+    {
+        String name;
+        int blocks;
+        // Blocks that need a probe with the instrumentation ratio 100.
+        int probe_blocks;
+        int probes;
+        boolean skipped;
+        boolean compact;
+        boolean cmplog;
+        int bytes_before;
+        int bytes_after;
+    }
+
+    static private class ClassReport
+    {
+        String file;
+        String name = "";
+        // instrumented, cached or skipped.
+        String status;
+        String reason = "";
+        // Not known for cached classes. Classes and methods that grow
+        // too large end up with lower effective ratios.
+        int requested_ratio = -1;
+        boolean split_compares;
+        int bytes_before;
+        int bytes_after;
+        int probes;
+        List<MethodReport> methods = new ArrayList<MethodReport>();
+    }
+
+    private List<ClassReport> _classes = new ArrayList<ClassReport>();
+
+    /**
+     * Returns the code length of each method with code by name and
+     * descriptor.
+     */
+    static private HashMap<String, Integer> _code_sizes(ClassReader reader)
+    {
+        HashMap<String, Integer> result = new HashMap<String, Integer>();
+        char[] buffer = new char[reader.getMaxStringLength()];
+        // Access flags, this class and super class.
+        int offset = reader.header + 6;
+        offset += 2 + 2 * reader.readUnsignedShort(offset);
+        int fields = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < fields; i++) {
+            int attributes = reader.readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributes; j++) {
+                offset += 6 + reader.readInt(offset + 2);
+            }
+        }
+        int methods = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < methods; i++) {
+            String method = reader.readUTF8(offset + 2, buffer)
+                + reader.readUTF8(offset + 4, buffer);
+            int attributes = reader.readUnsignedShort(offset + 6);
+            offset += 8;
+            for (int j = 0; j < attributes; j++) {
+                if (reader.readUTF8(offset, buffer).equals("Code")) {
+                    // Attribute name and length, max stack and locals.
+                    result.put(method, reader.readInt(offset + 10));
+                }
+                offset += 6 + reader.readInt(offset + 2);
+            }
+        }
+        return result;
+    }
+
+    private ClassReport _class_report(String filename, byte[] input, JavaAflInstrument.InstrumentedClass result)
+    {
+        ClassReport report = new ClassReport();
+        report.file = filename;
+        report.bytes_before = input.length;
+        report.bytes_after = result.data.length;
+        report.probes = result.locations;
+        try {
+            report.name = new ClassReader(input).getClassName();
+        } catch (RuntimeException e) {
+            // Reported as not a valid class file.
+        }
+        return report;
+    }
+
+    synchronized void add_cached(String filename, byte[] input, JavaAflInstrument.InstrumentedClass result)
+    {
+        if (!filename.endsWith(".class")) {
+            return;
+        }
+        ClassReport report = _class_report(filename, input, result);
+        report.status = "cached";
+        _classes.add(report);
+    }
+
+    synchronized void add(
+        String filename,
+        byte[] input,
+        JavaAflInstrument.InstrumentedClass result,
+        JavaAflInstrument.InstrumentationOptions options,
+        int requested_ratio)
+    {
+        if (!filename.endsWith(".class")) {
+            return;
+        }
+        ClassReport report = _class_report(filename, input, result);
+        report.requested_ratio = requested_ratio;
+        report.split_compares = options.split_compares;
+        if (result.skip_reason != null || result.methods == null) {
+            report.status = "skipped";
+            report.reason = result.skip_reason != null ? result.skip_reason : "";
+            _classes.add(report);
+            return;
+        }
+        report.status = "instrumented";
+        HashMap<String, Integer> sizes_before = _code_sizes(new ClassReader(input));
+        HashMap<String, Integer> sizes_after = _code_sizes(new ClassReader(result.data));
+        for (JavaAflInstrument.MethodBlocks blocks : result.methods) {
+            MethodReport method = new MethodReport();
+            // Keys are class.name(descriptor).
+            method.name = blocks.key.substring(report.name.length() + 1);
+            method.blocks = blocks.probes.length;
+            for (boolean probe : blocks.probes) {
+                if (probe) {
+                    method.probe_blocks++;
+                }
+            }
+            method.probes = blocks.locations;
+            method.skipped = blocks.skipped;
+            method.compact = blocks.compact;
+            method.cmplog = blocks.cmplog;
+            method.bytes_before = sizes_before.getOrDefault(method.name, 0);
+            method.bytes_after = sizes_after.getOrDefault(method.name, 0);
+            report.methods.add(method);
+        }
+        _classes.add(report);
+    }
+
+    private int _total_probes()
+    {
+        int result = 0;
+        for (ClassReport report : _classes) {
+            result += report.probes;
+        }
+        return result;
+    }
+
+    // Expected share of the map that n randomly placed values fill.
+    static private double _fill(int n, int map_size)
+    {
+        return 1 - Math.pow(1 - 1.0 / map_size, n);
+    }
+
+    private static String _quote(String value)
+    {
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < ' ') {
+                result.append(String.format("\\u%04x", (int)c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    private static String _csv(String value)
+    {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    // Each probe is assumed to take part in one edge on average.
+    /**
+     * Returns the percentage of blocks needing a probe that got one,
+     * or -1 if there were no such blocks.
+     */
+    static private double _effective_ratio(int probes, int probe_blocks)
+    {
+        return probe_blocks == 0 ? -1 : 100.0 * probes / probe_blocks;
+    }
+
+    static private double _effective_ratio(ClassReport report)
+    {
+        int probe_blocks = 0;
+        for (MethodReport method : report.methods) {
+            probe_blocks += method.probe_blocks;
+        }
+        return _effective_ratio(report.probes, probe_blocks);
+    }
+
+    static private double _collision_rate(int probes, int map_size)
+    {
+        return probes == 0 ? 0 : 1 - _fill(probes, map_size) * map_size / probes;
+    }
+
+    private void _write_json(PrintStream output, int map_size, JavaAflProbeIds probe_ids)
+    {
+        int probes = _total_probes();
+        output.println("{");
+        output.println("  \"map_size\": " + map_size + ",");
+        output.println("  \"probes\": " + probes + ",");
+        output.println("  \"estimated_map_fill\": " + _fill(probes, map_size) + ",");
+        output.println("  \"estimated_collision_rate\": "
+                       + _collision_rate(probes, map_size) + ",");
+        if (probe_ids != null && probe_ids.is_allocated()) {
+            output.println("  \"known_edges\": " + probe_ids.edge_count() + ",");
+            output.println("  \"colliding_known_edges\": " + probe_ids.colliding_edges() + ",");
+        }
+        output.println("  \"classes\": [");
+        for (int i = 0; i < _classes.size(); i++) {
+            ClassReport report = _classes.get(i);
+            output.println("    {");
+            output.println("      \"file\": " + _quote(report.file) + ",");
+            output.println("      \"class\": " + _quote(report.name) + ",");
+            output.println("      \"status\": " + _quote(report.status) + ",");
+            output.println("      \"reason\": " + _quote(report.reason) + ",");
+            double effective_ratio = _effective_ratio(report);
+            output.println("      \"requested_ratio\": "
+                           + (report.requested_ratio < 0 ? "null" : report.requested_ratio) + ",");
+            output.println("      \"effective_ratio\": "
+                           + (effective_ratio < 0 ? "null" : effective_ratio) + ",");
+            output.println("      \"split_compares\": " + report.split_compares + ",");
+            output.println("      \"bytes_before\": " + report.bytes_before + ",");
+            output.println("      \"bytes_after\": " + report.bytes_after + ",");
+            output.println("      \"probes\": " + report.probes + ",");
+            output.println("      \"methods\": [");
+            for (int j = 0; j < report.methods.size(); j++) {
+                MethodReport method = report.methods.get(j);
+                double method_ratio = _effective_ratio(method.probes, method.probe_blocks);
+                output.println(
+                    "        {\"name\": " + _quote(method.name)
+                    + ", \"blocks\": " + method.blocks
+                    + ", \"probes\": " + method.probes
+                    + ", \"effective_ratio\": " + (method_ratio < 0 ? "null" : method_ratio)
+                    + ", \"skipped\": " + method.skipped
+                    + ", \"compact\": " + method.compact
+                    + ", \"cmplog\": " + method.cmplog
+                    + ", \"bytes_before\": " + method.bytes_before
+                    + ", \"bytes_after\": " + method.bytes_after
+                    + (j + 1 < report.methods.size() ? "}," : "}"));
+            }
+            output.println("      ]");
+            output.println(i + 1 < _classes.size() ? "    }," : "    }");
+        }
+        output.println("  ]");
+        output.println("}");
+    }
+
+    private void _write_csv(PrintStream output, int map_size, JavaAflProbeIds probe_ids)
+    {
+        output.println(
+            "file,class,method,status,reason,requested_ratio,effective_ratio,split_compares,blocks,probes,compact,cmplog,bytes_before,bytes_after,"
+            + "map_size,estimated_map_fill,estimated_collision_rate,known_edges,colliding_known_edges");
+        for (ClassReport report : _classes) {
+            String class_columns = _csv(report.file) + "," + _csv(report.name);
+            double effective_ratio = _effective_ratio(report);
+            output.println(
+                class_columns + ",," + report.status + "," + _csv(report.reason)
+                + "," + (report.requested_ratio < 0 ? "" : report.requested_ratio)
+                + "," + (effective_ratio < 0 ? "" : effective_ratio)
+                + "," + report.split_compares
+                + ",," + report.probes + ",,,"
+                + report.bytes_before + "," + report.bytes_after + ",,,,,");
+            for (MethodReport method : report.methods) {
+                double method_ratio = _effective_ratio(method.probes, method.probe_blocks);
+                output.println(
+                    class_columns + "," + _csv(method.name) + ","
+                    + (method.skipped ? "skipped" : "instrumented") + ",,,"
+                    + (method_ratio < 0 ? "" : method_ratio) + ",,"
+                    + method.blocks + "," + method.probes + ","
+                    + method.compact + "," + method.cmplog + ","
+                    + method.bytes_before + "," + method.bytes_after + ",,,,,");
+            }
+        }
+        // Totals go to a row of their own at the end, the only one
+        // with the map columns.
+        int probes = _total_probes();
+        long bytes_before = 0;
+        long bytes_after = 0;
+        for (ClassReport report : _classes) {
+            bytes_before += report.bytes_before;
+            bytes_after += report.bytes_after;
+        }
+        String edges = ",";
+        if (probe_ids != null && probe_ids.is_allocated()) {
+            edges = probe_ids.edge_count() + "," + probe_ids.colliding_edges();
+        }
+        output.println(
+            ",,,total,,,,,," + probes + ",,," + bytes_before + "," + bytes_after + ","
+            + map_size + "," + _fill(probes, map_size) + ","
+            + _collision_rate(probes, map_size) + "," + edges);
+    }
+
+    synchronized void write(String filename, int map_size, JavaAflProbeIds probe_ids)
+        throws IOException
+    {
+        // Jobs finish in any order.
+        Collections.sort(_classes, (a, b) -> a.file.compareTo(b.file));
+        try (PrintStream output = new PrintStream(filename, "UTF-8")) {
+            if (filename.endsWith(".csv")) {
+                _write_csv(output, map_size, probe_ids);
+            } else {
+                _write_json(output, map_size, probe_ids);
+            }
+        }
+    }
+}
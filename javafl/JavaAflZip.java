@@ -0,0 +1,468 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip file reader and writer that can copy entries from one
+ * file to another without decompressing and compressing them again.
+ *
+ * Entries keep their original metadata from the central directory.
+ * Zip64 files are not supported and get rejected with ZipException.
+ */
+class JavaAflZip
+{
+    static private final int LOCAL_SIGNATURE = 0x04034b50;
+    static private final int CENTRAL_SIGNATURE = 0x02014b50;
+    static private final int END_SIGNATURE = 0x06054b50;
+    static private final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static private final int LOCAL_HEADER_SIZE = 30;
+    static private final int CENTRAL_HEADER_SIZE = 46;
+    static private final int END_SIZE = 22;
+    static private final int FLAG_DESCRIPTOR = 0x08;
+    static private final int FLAG_UTF8 = 0x800;
+    static private final int STORED = 0;
+    static private final int DEFLATED = 8;
+
+    static class Entry
+    {
+        String name;
+        // Central directory record of this entry, including its name,
+        // extra field and comment.
+        ByteBuffer central;
+
+        Entry(String name_, ByteBuffer central_)
+        {
+            name = name_;
+            central = central_;
+        }
+
+        boolean isDirectory()
+        {
+            return name.endsWith("/");
+        }
+
+        int flags()
+        {
+            return central.getShort(8) & 0xffff;
+        }
+
+        int method()
+        {
+            return central.getShort(10) & 0xffff;
+        }
+
+        long compressed_size()
+        {
+            return central.getInt(20) & 0xffffffffL;
+        }
+
+        long size()
+        {
+            return central.getInt(24) & 0xffffffffL;
+        }
+
+        long local_offset()
+        {
+            return central.getInt(42) & 0xffffffffL;
+        }
+    }
+
+    static class Reader
+    {
+        private RandomAccessFile _file;
+        private MappedByteBuffer _data;
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        // Comment of the whole zip file.
+        byte[] comment = new byte[0];
+
+        Reader(File file) throws IOException
+        {
+            _file = new RandomAccessFile(file, "r");
+            try {
+                if (_file.length() > Integer.MAX_VALUE) {
+                    throw new ZipException("Zip64 files are not supported");
+                }
+                _data = _file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, _file.length());
+                _data.order(ByteOrder.LITTLE_ENDIAN);
+                _read_central_directory();
+            } catch (IOException e) {
+                _file.close();
+                throw e;
+            }
+        }
+
+        private int _find_end()
+            throws ZipException
+        {
+            // The end of central directory record is followed by a
+            // comment of at most 65535 bytes.
+            int last = _data.limit() - END_SIZE;
+            int first = Math.max(0, last - 0xffff);
+            for (int offset = last; offset >= first; offset--) {
+                if (_data.getInt(offset) == END_SIGNATURE) {
+                    return offset;
+                }
+            }
+            throw new ZipException("End of central directory not found");
+        }
+
+        private void _read_central_directory()
+            throws ZipException
+        {
+            int end = _find_end();
+            int count = _data.getShort(end + 10) & 0xffff;
+            long directory_size = _data.getInt(end + 12) & 0xffffffffL;
+            long directory_offset = _data.getInt(end + 16) & 0xffffffffL;
+            if (count == 0xffff || directory_offset == 0xffffffffL) {
+                throw new ZipException("Zip64 files are not supported");
+            }
+            if (directory_offset + directory_size > end) {
+                throw new ZipException("Invalid central directory");
+            }
+            int file_comment_length = _data.getShort(end + 20) & 0xffff;
+            if (end + END_SIZE + file_comment_length <= _data.limit()) {
+                comment = new byte[file_comment_length];
+                _slice(end + END_SIZE, file_comment_length).get(comment);
+            }
+            int offset = (int)directory_offset;
+            for (int i = 0; i < count; i++) {
+                if (offset + CENTRAL_HEADER_SIZE > end
+                    || _data.getInt(offset) != CENTRAL_SIGNATURE) {
+                    throw new ZipException("Invalid central directory entry");
+                }
+                int name_length = _data.getShort(offset + 28) & 0xffff;
+                int extra_length = _data.getShort(offset + 30) & 0xffff;
+                int comment_length = _data.getShort(offset + 32) & 0xffff;
+                int record_size = CENTRAL_HEADER_SIZE
+                    + name_length + extra_length + comment_length;
+                ByteBuffer central = _slice(offset, record_size);
+                byte[] name = new byte[name_length];
+                _slice(offset + CENTRAL_HEADER_SIZE, name_length).get(name);
+                Entry entry = new Entry(
+                    new String(name, java.nio.charset.StandardCharsets.UTF_8),
+                    central);
+                if (entry.compressed_size() == 0xffffffffL
+                    || entry.size() == 0xffffffffL
+                    || entry.local_offset() == 0xffffffffL) {
+                    throw new ZipException("Zip64 files are not supported");
+                }
+                // Everything that reading or copying the entry can
+                // find unsupported is found before any work starts.
+                if (!entry.isDirectory()
+                    && entry.method() != STORED
+                    && entry.method() != DEFLATED) {
+                    throw new ZipException(
+                        "Unsupported compression method for " + entry.name);
+                }
+                raw(entry);
+                entries.add(entry);
+                offset += record_size;
+            }
+        }
+
+        private ByteBuffer _slice(int offset, int length)
+        {
+            ByteBuffer result = _data.duplicate();
+            result.position(offset);
+            result.limit(offset + length);
+            return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private int _data_offset(Entry entry) throws ZipException
+        {
+            int offset = (int)entry.local_offset();
+            if (offset + LOCAL_HEADER_SIZE > _data.limit()
+                || _data.getInt(offset) != LOCAL_SIGNATURE) {
+                throw new ZipException("Invalid local header for " + entry.name);
+            }
+            int name_length = _data.getShort(offset + 26) & 0xffff;
+            int extra_length = _data.getShort(offset + 28) & 0xffff;
+            return offset + LOCAL_HEADER_SIZE + name_length + extra_length;
+        }
+
+        /**
+         * Returns the local header, compressed data and possible data
+         * descriptor of the given entry as they are in the file.
+         */
+        ByteBuffer raw(Entry entry) throws ZipException
+        {
+            int start = (int)entry.local_offset();
+            long end = _data_offset(entry) + entry.compressed_size();
+            if ((entry.flags() & FLAG_DESCRIPTOR) != 0) {
+                // The signature of a data descriptor is optional.
+                if (end + 4 <= _data.limit()
+                    && _data.getInt((int)end) == DESCRIPTOR_SIGNATURE) {
+                    end += 16;
+                } else {
+                    end += 12;
+                }
+            }
+            if (end > _data.limit()) {
+                throw new ZipException("Truncated entry " + entry.name);
+            }
+            return _slice(start, (int)end - start);
+        }
+
+        byte[] read(Entry entry) throws IOException
+        {
+            ByteBuffer compressed = _slice(
+                _data_offset(entry), (int)entry.compressed_size());
+            byte[] result = new byte[(int)entry.size()];
+            if (entry.method() == STORED) {
+                compressed.get(result);
+                return result;
+            }
+            if (entry.method() != DEFLATED) {
+                throw new ZipException(
+                    "Unsupported compression method for " + entry.name);
+            }
+            byte[] input = new byte[compressed.remaining()];
+            compressed.get(input);
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int read = 0;
+                while (read < result.length) {
+                    int inflated = inflater.inflate(
+                        result, read, result.length - read);
+                    if (inflated == 0
+                        && (inflater.finished() || inflater.needsInput())) {
+                        break;
+                    }
+                    read += inflated;
+                }
+                if (read != result.length) {
+                    throw new ZipException("Truncated entry " + entry.name);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(
+                    "Invalid compressed data for " + entry.name);
+            } finally {
+                inflater.end();
+            }
+            return result;
+        }
+
+        void close() throws IOException
+        {
+            _file.close();
+        }
+    }
+
+    static class Writer
+    {
+        private RandomAccessFile _file;
+        private FileChannel _channel;
+        private long _position = 0;
+        private ByteBuffer _directory = _new_buffer(65536);
+        private int _count = 0;
+        private HashSet<String> _names = new HashSet<String>();
+        private Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private int _time;
+        private int _date;
+        private byte[] _comment = new byte[0];
+
+        Writer(File file) throws IOException
+        {
+            _file = new RandomAccessFile(file, "rw");
+            _file.setLength(0);
+            _channel = _file.getChannel();
+            LocalDateTime now = LocalDateTime.now();
+            _time = (now.getHour() << 11)
+                | (now.getMinute() << 5)
+                | (now.getSecond() >> 1);
+            _date = ((Math.max(now.getYear(), 1980) - 1980) << 9)
+                | (now.getMonthValue() << 5)
+                | now.getDayOfMonth();
+        }
+
+        void set_comment(byte[] comment)
+        {
+            _comment = comment.length <= 0xffff ? comment : new byte[0];
+        }
+
+        static private ByteBuffer _new_buffer(int size)
+        {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void _write(ByteBuffer data) throws IOException
+        {
+            while (data.hasRemaining()) {
+                _position += _channel.write(data);
+            }
+        }
+
+        private void _begin_entry(String name) throws ZipException
+        {
+            if (!_names.add(name)) {
+                throw new ZipException("duplicate entry: " + name);
+            }
+            if (_count == 0xffff || _position > 0xffffffffL) {
+                throw new ZipException("Zip64 files are not supported");
+            }
+            _count++;
+        }
+
+        private void _add_central(ByteBuffer central, int offset)
+        {
+            if (_directory.remaining() < central.remaining()) {
+                ByteBuffer grown = _new_buffer(
+                    Math.max(_directory.capacity() * 2,
+                             _directory.position() + central.remaining()));
+                _directory.flip();
+                grown.put(_directory);
+                _directory = grown;
+            }
+            int start = _directory.position();
+            _directory.put(central.duplicate());
+            _directory.putInt(start + 42, offset);
+        }
+
+        /**
+         * Copies an entry as it is from another zip file.
+         */
+        void copy(Reader reader, Entry entry) throws IOException
+        {
+            _begin_entry(entry.name);
+            int offset = (int)_position;
+            _write(reader.raw(entry));
+            _add_central(entry.central, offset);
+        }
+
+        /**
+         * Writes new data for an entry of another zip file, keeping
+         * the rest of its metadata.
+         */
+        void add(Entry entry, byte[] data) throws IOException
+        {
+            _add(entry.name, data, entry.central);
+        }
+
+        void add(String name, byte[] data) throws IOException
+        {
+            byte[] name_bytes = name.getBytes(
+                java.nio.charset.StandardCharsets.UTF_8);
+            ByteBuffer central = _new_buffer(
+                CENTRAL_HEADER_SIZE + name_bytes.length);
+            central.putInt(0, CENTRAL_SIGNATURE);
+            central.putShort(4, (short)20);
+            central.putShort(12, (short)_time);
+            central.putShort(14, (short)_date);
+            central.putShort(28, (short)name_bytes.length);
+            central.position(CENTRAL_HEADER_SIZE);
+            central.put(name_bytes);
+            central.rewind();
+            _add(name, data, central);
+        }
+
+        private void _add(String name, byte[] data, ByteBuffer original)
+            throws IOException
+        {
+            _begin_entry(name);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            _deflater.reset();
+            _deflater.setInput(data);
+            _deflater.finish();
+            java.io.ByteArrayOutputStream compressed =
+                new java.io.ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[65536];
+            while (!_deflater.finished()) {
+                int deflated = _deflater.deflate(buffer);
+                compressed.write(buffer, 0, deflated);
+            }
+            byte[] compressed_data = compressed.toByteArray();
+
+            ByteBuffer central = _new_buffer(original.remaining());
+            central.put(original.duplicate());
+            central.rewind();
+            int flags = (central.getShort(8) & ~FLAG_DESCRIPTOR) | FLAG_UTF8;
+            central.putShort(6, (short)Math.max(central.getShort(6), 20));
+            central.putShort(8, (short)flags);
+            central.putShort(10, (short)DEFLATED);
+            central.putInt(16, (int)crc.getValue());
+            central.putInt(20, compressed_data.length);
+            central.putInt(24, data.length);
+
+            byte[] name_bytes = name.getBytes(
+                java.nio.charset.StandardCharsets.UTF_8);
+            ByteBuffer local = _new_buffer(
+                LOCAL_HEADER_SIZE + name_bytes.length);
+            local.putInt(LOCAL_SIGNATURE);
+            local.putShort(central.getShort(6));
+            local.putShort((short)flags);
+            local.putShort((short)DEFLATED);
+            local.putShort(central.getShort(12));
+            local.putShort(central.getShort(14));
+            local.putInt((int)crc.getValue());
+            local.putInt(compressed_data.length);
+            local.putInt(data.length);
+            local.putShort((short)name_bytes.length);
+            local.putShort((short)0);
+            local.put(name_bytes);
+            local.flip();
+
+            int offset = (int)_position;
+            _write(local);
+            _write(ByteBuffer.wrap(compressed_data));
+            _add_central(central, offset);
+        }
+
+        void close() throws IOException
+        {
+            try {
+                int directory_offset = (int)_position;
+                _directory.flip();
+                int directory_size = _directory.remaining();
+                _write(_directory);
+                ByteBuffer end = _new_buffer(END_SIZE + _comment.length);
+                end.putInt(END_SIGNATURE);
+                end.putShort((short)0);
+                end.putShort((short)0);
+                end.putShort((short)_count);
+                end.putShort((short)_count);
+                end.putInt(directory_size);
+                end.putInt(directory_offset);
+                end.putShort((short)_comment.length);
+                end.put(_comment);
+                end.flip();
+                _write(end);
+            } finally {
+                _deflater.end();
+                _file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Execution statistics in a memory mapped file that is named by
+ * JAVA_AFL_STATS. Other programs can read the file at any time while
+ * the fuzzed program runs, for example with
+ * "java -cp java-afl-instrument.jar javafl.Telemetry file".
+ *
+ * The file is a list of 64 bit integers in native byte order. The
+ * fork server creates it before the first fork, so all forked
+ * children and no-fork JVMs update the same counters. Counting an
+ * execution only reads the clock and writes to the mapped file.
+ * Map density, heap and garbage collector figures are sampled at
+ * most once per second, and they are those of the process that took
+ * the sample.
+ */
+public class Telemetry
+{
+    // This is here so that this class won't be accidentally instrumented.
+    static public final String INSTRUMENTATION_MARKER = "__JAVA-AFL-INSTRUMENTED-CLASSFILE__";
+
+    static public final String STATS_ENV_VAR = "JAVA_AFL_STATS";
+    // Set for JVMs that the no-fork fork server starts.
+    static private final String NO_FORK_CHILD_ENV_VAR = "__JAVA_AFL_NO_FORK_CHILD";
+
+    // "JAFLSTAT" as a little endian number.
+    static public final long MAGIC = 0x544154534c46414aL;
+    static public final long VERSION = 1;
+
+    // Field indexes. The ones that each execution updates are also
+    // in JavaAfl.c.
+    static public final int FIELD_MAGIC = 0;
+    static public final int FIELD_VERSION = 1;
+    static public final int FIELD_EXECUTIONS = 2;
+    static public final int FIELD_CRASHES = 3;
+    static public final int FIELD_EXECUTION_NANOS = 4;
+    static public final int FIELD_MAX_NANOS = 5;
+    static public final int FIELD_LAST_NANOS = 6;
+    static public final int FIELD_MAP_SIZE = 7;
+    static public final int FIELD_MAP_ENTRIES = 8;
+    static public final int FIELD_GC_COUNT = 9;
+    static public final int FIELD_GC_MILLIS = 10;
+    static public final int FIELD_JIT_MILLIS = 11;
+    static public final int FIELD_HEAP_USED = 12;
+    static public final int FIELD_HEAP_COMMITTED = 13;
+    static public final int FIELD_SAMPLED_NANOS = 14;
+    static public final int FIELD_UPDATED_MILLIS = 15;
+    // Execution counts by the highest set bit of their duration in
+    // nanoseconds, so bucket b has durations from 2^b to 2^(b+1) - 1.
+    static public final int FIELD_HISTOGRAM = 16;
+    static public final int HISTOGRAM_BUCKETS = 64;
+    static public final int FIELDS = FIELD_HISTOGRAM + HISTOGRAM_BUCKETS;
+
+    static private final String[] FIELD_NAMES = {
+        "magic",
+        "version",
+        "executions",
+        "crashes",
+        "execution_nanos",
+        "max_nanos",
+        "last_nanos",
+        "map_size",
+        "map_entries",
+        "gc_count",
+        "gc_millis",
+        "jit_millis",
+        "heap_used",
+        "heap_committed",
+        "sampled_nanos",
+        "updated_millis",
+    };
+
+    // Null when statistics are not collected.
+    static private MappedByteBuffer _stats = null;
+    // Address of the mapping for counting executions natively.
+    static private long _address = 0;
+    static private GarbageCollectorMXBean[] _collectors = null;
+    static private CompilationMXBean _compiler = null;
+
+    static private boolean _running = false;
+    static private long _start = 0;
+
+    static private MappedByteBuffer _map(String filename, boolean writable)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, writable ? "rw" : "r");
+        try {
+            if (writable) {
+                file.setLength(FIELDS * 8);
+            }
+            MappedByteBuffer result = file.getChannel().map(
+                writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                0,
+                FIELDS * 8);
+            result.order(ByteOrder.nativeOrder());
+            return result;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            file.close();
+        }
+    }
+
+    static private MappedByteBuffer _open_stats()
+    {
+        String filename = System.getenv(STATS_ENV_VAR);
+        if (filename == null || filename.isEmpty()) {
+            return null;
+        }
+        boolean is_no_fork_child = System.getenv(NO_FORK_CHILD_ENV_VAR) != null;
+        MappedByteBuffer stats;
+        try {
+            stats = _map(filename, true);
+        } catch (IOException e) {
+            System.err.println("Could not open " + STATS_ENV_VAR + " file " + filename + ": " + e);
+            return null;
+        }
+        // The fork server that started this JVM has already set up
+        // the file and other JVMs may be counting to it.
+        if (!is_no_fork_child) {
+            for (int field = 0; field < FIELDS; field++) {
+                stats.putLong(field * 8, 0);
+            }
+            stats.putLong(FIELD_VERSION * 8, VERSION);
+            stats.putLong(FIELD_MAP_SIZE * 8, JavaAfl.map.length);
+            stats.putLong(FIELD_UPDATED_MILLIS * 8, System.currentTimeMillis());
+            // Readers check this last.
+            stats.putLong(FIELD_MAGIC * 8, MAGIC);
+        }
+        return stats;
+    }
+
+    static private void _set(int field, long value)
+    {
+        _stats.putLong(field * 8, value);
+    }
+
+    /**
+     * Opens the statistics file if JAVA_AFL_STATS names one. This
+     * needs to happen before forking, so that children share the
+     * mapping.
+     */
+    static void init()
+    {
+        MappedByteBuffer stats = _open_stats();
+        if (stats != null) {
+            _address = JavaAfl._get_buffer_address(stats);
+            if (_address == 0) {
+                System.err.println("Could not access " + STATS_ENV_VAR + " file memory");
+                return;
+            }
+            _stats = stats;
+            _collectors = ManagementFactory.getGarbageCollectorMXBeans().toArray(
+                new GarbageCollectorMXBean[0]);
+            _compiler = ManagementFactory.getCompilationMXBean();
+        }
+    }
+
+    static void begin()
+    {
+        if (_stats == null) {
+            return;
+        }
+        _start = System.nanoTime();
+        _running = true;
+    }
+
+    /**
+     * Counts the execution that the previous begin() started. Does
+     * nothing if there is none.
+     */
+    static void end()
+    {
+        if (!_running) {
+            return;
+        }
+        _running = false;
+        long now = System.nanoTime();
+        // Updates the execution fields and the histogram, and tells
+        // when the last sample in the file is over a second old.
+        if (JavaAfl._count_execution(_address, now - _start, now)) {
+            _sample();
+        }
+    }
+
+    // The execution that ended with a crash is counted as well.
+    static void crash()
+    {
+        if (_stats == null) {
+            return;
+        }
+        _set(FIELD_CRASHES, _stats.getLong(FIELD_CRASHES * 8) + 1);
+        end();
+    }
+
+    static private void _sample()
+    {
+        // Probes of --direct-map write to the afl map, so these are
+        // not seen here.
+        _set(FIELD_MAP_ENTRIES, JavaAfl._count_map_entries(JavaAfl.map));
+        long gc_count = 0;
+        long gc_millis = 0;
+        for (GarbageCollectorMXBean collector : _collectors) {
+            gc_count += Math.max(collector.getCollectionCount(), 0);
+            gc_millis += Math.max(collector.getCollectionTime(), 0);
+        }
+        _set(FIELD_GC_COUNT, gc_count);
+        _set(FIELD_GC_MILLIS, gc_millis);
+        if (_compiler != null && _compiler.isCompilationTimeMonitoringSupported()) {
+            _set(FIELD_JIT_MILLIS, _compiler.getTotalCompilationTime());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        _set(FIELD_HEAP_USED, runtime.totalMemory() - runtime.freeMemory());
+        _set(FIELD_HEAP_COMMITTED, runtime.totalMemory());
+        _set(FIELD_UPDATED_MILLIS, System.currentTimeMillis());
+    }
+
+    /**
+     * Prints the statistics of the given file.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: javafl.Telemetry stats-file");
+            System.exit(1);
+        }
+        MappedByteBuffer stats = _map(args[0], false);
+        if (stats.getLong(FIELD_MAGIC * 8) != MAGIC) {
+            System.err.println(args[0] + " is not a java-afl statistics file");
+            System.exit(1);
+        }
+        long[] values = new long[FIELDS];
+        for (int field = 0; field < FIELDS; field++) {
+            values[field] = stats.getLong(field * 8);
+        }
+        for (int field = FIELD_VERSION; field < FIELD_HISTOGRAM; field++) {
+            System.out.println(FIELD_NAMES[field] + " " + values[field]);
+        }
+        long executions = values[FIELD_EXECUTIONS];
+        if (executions > 0) {
+            System.out.println("mean_nanos " + values[FIELD_EXECUTION_NANOS] / executions);
+        }
+        if (values[FIELD_MAP_SIZE] > 0) {
+            System.out.println(String.format(
+                "map_density %.2f%%", 100.0 * values[FIELD_MAP_ENTRIES] / values[FIELD_MAP_SIZE]));
+        }
+        for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+            long count = values[FIELD_HISTOGRAM + bucket];
+            if (count > 0) {
+                System.out.println("nanos_" + (1L << bucket) + " " + count);
+            }
+        }
+    }
+}
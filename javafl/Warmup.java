@@ -0,0 +1,455 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Work that is done in the fork server before the first fork, so
+ * that forked children don't need to repeat it. Children start from
+ * the state of the parent, but they don't have JIT compiler threads,
+ * and loading classes in them is slow as nothing is left behind for
+ * the next child.
+ */
+public class Warmup
+{
+    // This is here so that this class won't be accidentally instrumented.
+    static public final String INSTRUMENTATION_MARKER = "__JAVA-AFL-INSTRUMENTED-CLASSFILE__";
+
+    static private boolean _running = false;
+    static private boolean _loop_entered = false;
+
+    static public boolean is_running()
+    {
+        return _running;
+    }
+
+    // Lets the body of javafl.fuzz.loop() run once per warm-up
+    // execution of the harness.
+    static boolean loop()
+    {
+        boolean result = !_loop_entered;
+        _loop_entered = true;
+        return result;
+    }
+
+    /**
+     * Returns the classes of the methods on the call stack, innermost
+     * first, or null if they can't be found out. StackWalker is looked
+     * up by reflection, as it is not in Java 8, which these classes are
+     * built for.
+     */
+    static private java.util.List<Class<?>> _callers()
+    {
+        try {
+            Class<?> walker_class = Class.forName("java.lang.StackWalker");
+            Class<?> option_class = Class.forName("java.lang.StackWalker$Option");
+            Object walker = walker_class.getMethod("getInstance", option_class).invoke(
+                null, option_class.getField("RETAIN_CLASS_REFERENCE").get(null));
+            java.lang.reflect.Method declaring_class =
+                Class.forName("java.lang.StackWalker$StackFrame").getMethod(
+                    "getDeclaringClass");
+            java.util.List<Class<?>> result = new java.util.ArrayList<Class<?>>();
+            java.util.function.Consumer<Object> add_caller = frame -> {
+                try {
+                    result.add((Class<?>)declaring_class.invoke(frame));
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            walker_class.getMethod("forEach", java.util.function.Consumer.class).invoke(
+                walker, add_caller);
+            return result;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the class that called javafl.fuzz or javafl.JavaAfl
+     * initialization.
+     */
+    static private Class<?> _find_harness()
+    {
+        java.util.List<Class<?>> callers = _callers();
+        if (callers == null) {
+            return _find_harness_by_name();
+        }
+        for (Class<?> caller : callers) {
+            if (!caller.getName().startsWith("javafl.")) {
+                return caller;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the calling class by its name in the stack trace. This
+     * only finds classes that the context class loader can load.
+     */
+    static private Class<?> _find_harness_by_name()
+    {
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            String name = frame.getClassName();
+            if (_is_platform_class(name.replace('.', '/'))) {
+                continue;
+            }
+            try {
+                return Class.forName(
+                    name, false, Thread.currentThread().getContextClassLoader());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    static private boolean _is_platform_class(String name)
+    {
+        return name.startsWith("java/")
+            || name.startsWith("javax/")
+            || name.startsWith("jdk/")
+            || name.startsWith("sun/")
+            || name.startsWith("com/sun/")
+            || name.startsWith("javafl/");
+    }
+
+    // Platform classes are only loaded, as initializing them can
+    // start things like graphics toolkits that the program would not
+    // use. Loading the classes of the program itself also links them,
+    // which includes the expensive bytecode verification.
+    static private void _load_class(String name, ClassLoader loader)
+    {
+        boolean initialize = !_is_platform_class(name);
+        try {
+            Class.forName(name.replace('/', '.'), initialize, loader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            // The class is not needed or fails in the same way later.
+        }
+    }
+
+    /**
+     * Returns the names of the classes that the constant pool of a
+     * class file refers to.
+     */
+    static private java.util.List<String> _referenced_classes(InputStream stream)
+        throws IOException
+    {
+        DataInputStream input = new DataInputStream(stream);
+        input.skipBytes(8);
+        int count = input.readUnsignedShort();
+        String strings[] = new String[count];
+        int class_names[] = new int[count];
+        int classes = 0;
+        for (int i = 1; i < count; i++) {
+            int tag = input.readUnsignedByte();
+            switch (tag) {
+            case 1:
+                strings[i] = input.readUTF();
+                break;
+            case 7:
+                class_names[classes++] = input.readUnsignedShort();
+                break;
+            case 8: case 16: case 19: case 20:
+                input.skipBytes(2);
+                break;
+            case 15:
+                input.skipBytes(3);
+                break;
+            case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                input.skipBytes(4);
+                break;
+            case 5: case 6:
+                input.skipBytes(8);
+                i++;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        java.util.ArrayList<String> result = new java.util.ArrayList<String>();
+        for (int i = 0; i < classes; i++) {
+            String name = strings[class_names[i]];
+            if (name == null) {
+                continue;
+            }
+            int element = name.lastIndexOf('[') + 1;
+            if (element == 0) {
+                result.add(name);
+            } else if (name.charAt(element) == 'L') {
+                result.add(name.substring(element + 1, name.length() - 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the classes that can be reached through constant pool
+     * references from the harness class. Platform classes are loaded
+     * but not followed further.
+     */
+    static private void _load_reachable_classes(Class<?> harness)
+    {
+        ClassLoader loader = harness.getClassLoader();
+        java.util.ArrayDeque<String> pending = new java.util.ArrayDeque<String>();
+        java.util.HashSet<String> seen = new java.util.HashSet<String>();
+        String start = harness.getName().replace('.', '/');
+        pending.add(start);
+        seen.add(start);
+        while (!pending.isEmpty()) {
+            String name = pending.remove();
+            _load_class(name, loader);
+            if (_is_platform_class(name)) {
+                continue;
+            }
+            InputStream stream = loader.getResourceAsStream(name + ".class");
+            if (stream == null) {
+                continue;
+            }
+            try {
+                try {
+                    for (String referenced : _referenced_classes(stream)) {
+                        if (seen.add(referenced)) {
+                            pending.add(referenced);
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                // Only the classes found so far get loaded.
+            }
+        }
+    }
+
+    static private void _load_listed_classes(String filename, ClassLoader loader)
+    {
+        try {
+            java.io.BufferedReader reader = new java.io.BufferedReader(
+                new java.io.FileReader(filename));
+            try {
+                String line = reader.readLine();
+                while (line != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        _load_class(line.replace('.', '/'), loader);
+                    }
+                    line = reader.readLine();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read warm-up classes from " + filename + ": " + e);
+        }
+    }
+
+    static private byte[][] _read_corpus(String directory)
+    {
+        File files[] = new File(directory).listFiles();
+        if (files == null) {
+            System.err.println("Could not read warm-up corpus from " + directory);
+            return new byte[0][];
+        }
+        java.util.Arrays.sort(files);
+        java.util.ArrayList<byte[]> seeds = new java.util.ArrayList<byte[]>();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                seeds.add(java.nio.file.Files.readAllBytes(file.toPath()));
+            } catch (IOException e) {
+                System.err.println("Could not read warm-up input " + file + ": " + e);
+            }
+        }
+        return seeds.toArray(new byte[seeds.size()][]);
+    }
+
+    /**
+     * Returns true when HotSpot reports no compilations in progress
+     * or waiting, false when it does and null when it can't tell.
+     */
+    static private Boolean _is_compiler_idle()
+    {
+        String queue;
+        try {
+            queue = (String)java.lang.management.ManagementFactory
+                .getPlatformMBeanServer().invoke(
+                    new javax.management.ObjectName(
+                        "com.sun.management:type=DiagnosticCommand"),
+                    "compilerQueue",
+                    new Object[] {null},
+                    new String[] {String[].class.getName()});
+        } catch (Exception e) {
+            return null;
+        }
+        for (String line : queue.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()
+                && !line.equals("Current compiles:")
+                && !line.endsWith("compile queue:")
+                && !line.equals("Empty")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the JIT compiler has nothing to do. Forking in the
+     * middle of a compilation can leave locks held in the children,
+     * and they hang when they need them. Without HotSpot's compile
+     * queue this waits until compilation time stops growing.
+     */
+    static private void _wait_for_compiler()
+    {
+        java.lang.management.CompilationMXBean compiler =
+            java.lang.management.ManagementFactory.getCompilationMXBean();
+        long previous = -1;
+        int unchanged = 0;
+        for (int i = 0; i < 1000 && unchanged < 10; i++) {
+            Boolean idle = _is_compiler_idle();
+            if (idle != null) {
+                unchanged = idle ? unchanged + 1 : 0;
+            } else if (compiler != null
+                       && compiler.isCompilationTimeMonitoringSupported()) {
+                long current = compiler.getTotalCompilationTime();
+                unchanged = current == previous ? unchanged + 1 : 0;
+                previous = current;
+            } else {
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs main() of the harness with each input of the corpus as
+     * its standard input and without arguments. Output is discarded.
+     */
+    static private void _run_harness(Class<?> harness, String corpus, int runs)
+    {
+        java.lang.reflect.Method main;
+        try {
+            main = harness.getMethod("main", String[].class);
+        } catch (NoSuchMethodException e) {
+            System.err.println("No main(String[]) method to warm up in " + harness.getName());
+            return;
+        }
+        byte[][] seeds = _read_corpus(corpus);
+        InputStream original_in = System.in;
+        PrintStream original_out = System.out;
+        PrintStream original_err = System.err;
+        PrintStream discard = new PrintStream(new java.io.OutputStream() {
+            @Override
+            public void write(int b) {}
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+        System.setOut(discard);
+        System.setErr(discard);
+        try {
+            for (int run = 0; run < runs; run++) {
+                for (byte[] seed : seeds) {
+                    System.setIn(new ByteArrayInputStream(seed));
+                    _loop_entered = false;
+                    try {
+                        main.invoke(null, (Object)new String[0]);
+                    } catch (IllegalAccessException | java.lang.reflect.InvocationTargetException e) {
+                        // Crashing inputs are as good for warming up as
+                        // any others.
+                    }
+                }
+            }
+        } finally {
+            System.setIn(original_in);
+            System.setOut(original_out);
+            System.setErr(original_err);
+        }
+    }
+
+    /**
+     * Does the warm-up that the environment asks for. This is called
+     * right before the fork server starts.
+     */
+    static void run()
+    {
+        // Only fork server parents benefit from this.
+        if (System.getenv("__AFL_SHM_ID") == null
+            || System.getenv("JAVA_AFL_NO_FORK") != null) {
+            return;
+        }
+        boolean load_reachable = System.getenv("JAVA_AFL_WARMUP") != null;
+        String classes = System.getenv("JAVA_AFL_WARMUP_CLASSES");
+        String corpus = System.getenv("JAVA_AFL_WARMUP_CORPUS");
+        if (!load_reachable && classes == null && corpus == null) {
+            return;
+        }
+        int runs = 1;
+        String runs_str = System.getenv("JAVA_AFL_WARMUP_RUNS");
+        if (runs_str != null) {
+            try {
+                runs = Integer.parseInt(runs_str);
+            } catch (NumberFormatException e) {
+                System.err.println(
+                    "JAVA_AFL_WARMUP_RUNS is not a number: " + runs_str
+                    + ", running the warm-up corpus once.");
+            }
+        }
+        Class<?> harness = _find_harness();
+        int prev_location = JavaAfl.prev_location;
+        _running = true;
+        try {
+            if (load_reachable && harness != null) {
+                _load_reachable_classes(harness);
+            }
+            if (classes != null) {
+                _load_listed_classes(
+                    classes,
+                    harness != null
+                        ? harness.getClassLoader()
+                        : ClassLoader.getSystemClassLoader());
+            }
+            if (corpus != null && harness != null) {
+                _run_harness(harness, corpus, runs);
+            }
+            _wait_for_compiler();
+            // A garbage collection leaves children with an empty young
+            // generation, as they can't collect garbage themselves. It
+            // also does the cleanup that would otherwise happen in a
+            // periodic safepoint. A child that is forked during a
+            // safepoint hangs when it returns from native code.
+            System.gc();
+        } finally {
+            _running = false;
+            // Initialization clears the map, but the first probe after
+            // it should see the same previous location as without
+            // the warm-up.
+            JavaAfl.prev_location = prev_location;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javafl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Java agent that instruments classes as any class loader defines
+ * them. This covers programs that create their own class loaders,
+ * which javafl.run can't see into:
+ *
+ * java -javaagent:java-afl-run.jar[=option,...] -cp ... main.Class
+ */
+public class agent implements ClassFileTransformer
+{
+    private JavaAflInstrument.InstrumentationOptions _options;
+    private JavaAflCache _disk_cache;
+    private ClassLoader _platform_loader;
+
+    agent(
+        JavaAflInstrument.InstrumentationOptions options,
+        JavaAflCache disk_cache)
+    {
+        _options = options;
+        _disk_cache = disk_cache;
+        _platform_loader = ClassLoader.getSystemClassLoader().getParent();
+    }
+
+    static private final String[] NEVER_INSTRUMENTED = {
+        "java/",
+        "javax/",
+        "jdk/",
+        "sun/",
+        "com/sun/",
+        "javafl/",
+        "org/objectweb/asm/",
+    };
+
+    private boolean _is_instrumented(ClassLoader loader, String name)
+    {
+        // Classes of the bootstrap and platform class loaders would
+        // run probes before javafl.JavaAfl is initialized.
+        if (loader == null || loader == _platform_loader) {
+            return false;
+        }
+        for (String prefix : NEVER_INSTRUMENTED) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called concurrently by every thread that defines a class. The
+     * options are only read and the caches are safe to share, so
+     * nothing here is synchronized.
+     */
+    @Override
+    public byte[] transform(
+        ClassLoader loader,
+        String class_name,
+        Class<?> class_being_redefined,
+        ProtectionDomain protection_domain,
+        byte[] class_data)
+    {
+        if (class_name == null
+            || class_being_redefined != null
+            || !_is_instrumented(loader, class_name)) {
+            return null;
+        }
+        try {
+            byte[] result = run.instrument_loaded_class(
+                class_data, class_name + ".class", _options, _disk_cache);
+            if (result == class_data) {
+                return null;
+            }
+            return result;
+        } catch (RuntimeException e) {
+            // Exceptions thrown from here would be silently ignored.
+            System.err.println("Unable to instrument " + class_name + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes javafl.JavaAfl and the other run time classes into a jar
+     * file that gets added to the bootstrap class path. Every class
+     * loader then finds the same map, and also the loaders that don't
+     * delegate to the system class loader find it.
+     */
+    static private File _runtime_jar(JavaAflCache disk_cache) throws IOException
+    {
+        ArrayList<byte[]> classes = new ArrayList<byte[]>();
+        CRC32 checksum = new CRC32();
+        for (String filename : JavaAflInstrument.RUNTIME_CLASSES) {
+            InputStream stream = agent.class.getResourceAsStream("/" + filename);
+            if (stream == null) {
+                throw new IOException("Could not find " + filename);
+            }
+            byte[] data = JavaAflInstrument.input_stream_to_bytes(stream);
+            checksum.update(data);
+            classes.add(data);
+        }
+        File directory = null;
+        File jar = null;
+        if (disk_cache != null) {
+            directory = disk_cache.directory();
+            jar = new File(
+                directory,
+                "runtime-" + Long.toHexString(checksum.getValue()) + ".jar");
+            if (jar.isFile()) {
+                return jar;
+            }
+            directory.mkdirs();
+        }
+        File temporary = File.createTempFile(".java-afl-runtime-", ".jar", directory);
+        try {
+            ZipOutputStream output = new ZipOutputStream(
+                new FileOutputStream(temporary));
+            try {
+                for (int i = 0; i < classes.size(); i++) {
+                    output.putNextEntry(
+                        new ZipEntry(JavaAflInstrument.RUNTIME_CLASSES[i]));
+                    output.write(classes.get(i));
+                    output.closeEntry();
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+        if (jar == null) {
+            temporary.deleteOnExit();
+            return temporary;
+        }
+        // Other processes see either a complete jar or nothing.
+        if (!temporary.renameTo(jar)) {
+            temporary.delete();
+        }
+        return jar;
+    }
+
+    private static void usage(String argument)
+    {
+        System.err.println("Unknown java-afl agent option " + argument);
+        System.err.println(
+            "Usage: -javaagent:java-afl-run.jar[=option,...] where options are "
+            + "custom-init, compute-frames, method-locals, thread-aware, "
+            + "direct-map, dirty-tracking, cmplog, split-compares, skip-synthetic, skip-clinit, stable-ids, "
+            + "include=rule:... and exclude=rule:...");
+    }
+
+    public static void premain(String arguments, Instrumentation instrumentation)
+        throws IOException
+    {
+        JavaAflInstrument.InstrumentationOptions options =
+            new JavaAflInstrument.InstrumentationOptions(
+                100, false, true);
+        boolean stable_ids = false;
+        String[] arguments_list = new String[0];
+        if (arguments != null && !arguments.isEmpty()) {
+            arguments_list = arguments.split(",");
+        }
+        for (String argument : arguments_list) {
+            if (argument.equals("custom-init")) {
+                options.has_custom_init = true;
+            } else if (argument.equals("compute-frames")) {
+                options.compute_frames = true;
+            } else if (argument.equals("method-locals")) {
+                options.method_locals = true;
+            } else if (argument.equals("thread-aware")) {
+                options.thread_aware = true;
+            } else if (argument.equals("direct-map")) {
+                options.direct_map = true;
+            } else if (argument.equals("dirty-tracking")) {
+                options.dirty_tracking = true;
+            } else if (argument.equals("cmplog")) {
+                options.cmplog = true;
+            } else if (argument.equals("split-compares")) {
+                options.split_compares = true;
+            } else if (argument.equals("skip-synthetic")) {
+                options.filter.skip_synthetic = true;
+            } else if (argument.equals("skip-clinit")) {
+                options.filter.skip_clinit = true;
+            } else if (argument.equals("stable-ids")) {
+                stable_ids = true;
+            } else if (argument.startsWith("include=")) {
+                options.filter.include(argument.substring("include=".length()));
+            } else if (argument.startsWith("exclude=")) {
+                options.filter.exclude(argument.substring("exclude=".length()));
+            } else {
+                usage(argument);
+                throw new IllegalArgumentException(argument);
+            }
+        }
+
+        String ratio_str = System.getenv("AFL_INST_RATIO");
+        if (ratio_str != null) {
+            options.ratio = Integer.parseInt(ratio_str);
+        }
+        ratio_str = System.getenv("JAVA_AFL_INST_RATIO");
+        if (ratio_str != null) {
+            options.ratio = Integer.parseInt(ratio_str);
+        }
+        if (options.ratio < 0 || options.ratio > 100) {
+            throw new IllegalArgumentException(
+                "AFL_INST_RATIO must be between 0 and 100!");
+        }
+
+        JavaAflCache disk_cache = run.disk_cache();
+        // This needs to happen before anything refers to javafl.JavaAfl.
+        instrumentation.appendToBootstrapClassLoaderSearch(
+            new JarFile(_runtime_jar(disk_cache)));
+        if (stable_ids) {
+            options.probe_ids = new JavaAflProbeIds(javafl.JavaAfl.map.length);
+        }
+        javafl.JavaAfl._add_agent_probes(
+            options.direct_map && !options.thread_aware,
+            options.dirty_tracking && !options.thread_aware && !options.direct_map);
+        instrumentation.addTransformer(
+            new agent(options, disk_cache));
+    }
+}
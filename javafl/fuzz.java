@@ -32,15 +32,24 @@ public class fuzz
     static private int _current_iteration = 0;
     static public boolean loop(int iterations)
     {
+        return _loop(iterations, false);
+    }
+
+    static private boolean _loop(int iterations, boolean reads_shared_input)
+    {
+        if (Warmup.is_running()) {
+            return Warmup.loop();
+        }
         if (_current_iteration == 0) {
             String persistent_set = System.getenv("JAVA_AFL_PERSISTENT");
             _allow_persistent = persistent_set != null;
-            javafl.JavaAfl._init(_allow_persistent);
+            javafl.JavaAfl._init(_allow_persistent, reads_shared_input);
             _current_iteration = 1;
             return true;
         }
         if (_allow_persistent && _current_iteration < iterations) {
             javafl.JavaAfl._send_map();
+            Telemetry.begin();
             _current_iteration++;
             return true;
         }
@@ -49,4 +58,174 @@ public class fuzz
         }
         return false;
     }
+
+    // Test case of input_loop(). afl++ can pass it in shared memory
+    // that starts with its length, and otherwise it is read from
+    // System.in to _input_data.
+    static private java.nio.ByteBuffer _shared_input = null;
+    static private java.nio.ByteBuffer _shared_data = null;
+    static private boolean _shared_input_checked = false;
+    static private byte[] _input_data = new byte[4096];
+    static private int _input_length = 0;
+    static private java.nio.ByteBuffer _input_buffer = null;
+
+    /**
+     * Same as loop(), but each iteration reads the test case for
+     * input(). afl++ can then pass test cases in shared memory
+     * instead of a file, which takes no system calls at all.
+     * Otherwise the test case is read from System.in.
+     */
+    static public boolean input_loop(int iterations)
+    {
+        if (!_loop(iterations, true)) {
+            return false;
+        }
+        if (!_shared_input_checked && _current_iteration > 0) {
+            _shared_input_checked = true;
+            java.nio.ByteBuffer shared = javafl.JavaAfl._get_shared_input();
+            if (shared != null) {
+                // afl++ writes the length in the native byte order.
+                _shared_input = shared.order(java.nio.ByteOrder.nativeOrder());
+                java.nio.ByteBuffer data = shared.duplicate();
+                data.position(4);
+                _shared_data = data.slice().asReadOnlyBuffer();
+            }
+        }
+        if (_shared_input == null) {
+            _read_input();
+        }
+        return true;
+    }
+
+    static private void _read_input()
+    {
+        int length = 0;
+        try {
+            int read = System.in.read(_input_data, 0, _input_data.length);
+            while (read >= 0) {
+                length += read;
+                if (length == _input_data.length) {
+                    _input_data = java.util.Arrays.copyOf(
+                        _input_data, _input_data.length * 2);
+                }
+                read = System.in.read(
+                    _input_data, length, _input_data.length - length);
+            }
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+        _input_length = length;
+    }
+
+    /**
+     * Returns the test case of the current input_loop() iteration.
+     * The buffer is only valid until the next iteration.
+     */
+    static public java.nio.ByteBuffer input()
+    {
+        if (_shared_input == null) {
+            if (_input_buffer == null || _input_buffer.capacity() != _input_data.length) {
+                _input_buffer = java.nio.ByteBuffer.wrap(_input_data).asReadOnlyBuffer();
+            }
+            _input_buffer.clear();
+            _input_buffer.limit(_input_length);
+            return _input_buffer;
+        }
+        _shared_data.clear();
+        _shared_data.limit(
+            Math.min(_shared_input.getInt(0), _shared_data.capacity()));
+        return _shared_data;
+    }
+
+    /**
+     * Copies the test case of the current input_loop() iteration to
+     * the given array and returns its length, or the length of the
+     * array if the test case does not fit.
+     */
+    static public int input(byte[] target)
+    {
+        if (_shared_input != null) {
+            // Forked children run without JIT compiler, and this is
+            // a lot faster than going through the buffer.
+            return javafl.JavaAfl._copy_shared_input(target);
+        }
+        int length = Math.min(_input_length, target.length);
+        System.arraycopy(_input_data, 0, target, 0, length);
+        return length;
+    }
+
+    /**
+     * Receives the test cases of run(). The data is only valid until
+     * the callback returns.
+     */
+    public interface ArrayCallback
+    {
+        void fuzz_one(byte[] data, int length) throws Exception;
+    }
+
+    public interface BufferCallback
+    {
+        void fuzz_one(java.nio.ByteBuffer data) throws Exception;
+    }
+
+    // Test case copied from the shared memory for ArrayCallback.
+    // This only grows, so that iterations don't allocate anything.
+    static private byte[] _callback_data = new byte[0];
+
+    /**
+     * Runs the persistent mode loop of input_loop() and calls the
+     * callback with each test case. Anything that the callback throws
+     * is reported to afl-fuzz as a crash. Use this from a main()
+     * method that has the @javafl.CustomInit annotation:
+     *
+     * javafl.fuzz.run(100000, (data, length) -> parse(data, length));
+     */
+    static public void run(int iterations, ArrayCallback callback)
+    {
+        while (input_loop(iterations)) {
+            byte[] data = _input_data;
+            int length = _input_length;
+            if (_shared_input != null) {
+                int size = Math.min(_shared_input.getInt(0), _shared_data.capacity());
+                if (_callback_data.length < size) {
+                    _callback_data = new byte[size];
+                }
+                data = _callback_data;
+                length = javafl.JavaAfl._copy_shared_input(data);
+            }
+            try {
+                callback.fuzz_one(data, length);
+            } catch (Throwable e) {
+                _callback_failed(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Same as run() with an ArrayCallback, but the test case is given
+     * as a read-only buffer that is used for every iteration. With
+     * afl++ it is the shared memory itself, so nothing gets copied.
+     */
+    static public void run(int iterations, BufferCallback callback)
+    {
+        while (input_loop(iterations)) {
+            try {
+                callback.fuzz_one(input());
+            } catch (Throwable e) {
+                _callback_failed(e);
+                return;
+            }
+        }
+    }
+
+    static private void _callback_failed(Throwable e)
+    {
+        // The warm-up runs the harness with inputs that are allowed
+        // to crash.
+        if (Warmup.is_running()) {
+            return;
+        }
+        javafl.JavaAfl._crash(e);
+    }
 }
@@ -16,75 +16,156 @@
 
 package javafl;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
 import java.io.InputStream;
 import java.io.ByteArrayOutputStream;
 import javafl.JavaAflInstrument;
 
 public class run extends ClassLoader
 {
-    private HashMap<String, Class<?>> _cache;
+    static {
+        registerAsParallelCapable();
+    }
+
+    private ConcurrentHashMap<String, Class<?>> _cache;
     private JavaAflInstrument.InstrumentationOptions _options;
+    // Instrumented classes are reused from here between JVM launches.
+    private JavaAflCache _disk_cache;
 
     public run(
         ClassLoader parent,
         JavaAflInstrument.InstrumentationOptions options) {
+        this(parent, options, null);
+    }
+
+    public run(
+        ClassLoader parent,
+        JavaAflInstrument.InstrumentationOptions options,
+        JavaAflCache disk_cache) {
         super(parent);
-        _cache = new HashMap<String, Class<?>>();
+        _cache = new ConcurrentHashMap<String, Class<?>>();
         _options = options;
+        _disk_cache = disk_cache;
+    }
+
+    /**
+     * Instruments a class that is being loaded or gets it from the
+     * cache. Returns the original data if the class can't be
+     * instrumented.
+     */
+    static byte[] instrument_loaded_class(
+        byte[] class_data,
+        String resource,
+        JavaAflInstrument.InstrumentationOptions options,
+        JavaAflCache disk_cache)
+    {
+        if (resource.endsWith(".class")
+            && options.filter.excludes_class(
+                resource.substring(0, resource.length() - ".class".length()))) {
+            return class_data;
+        }
+        String key = null;
+        if (disk_cache != null && JavaAflCache.is_cacheable(resource, options)) {
+            key = disk_cache.quick_key(class_data, resource, options);
+            JavaAflInstrument.InstrumentedClass cached =
+                disk_cache.get(key, class_data);
+            if (cached != null) {
+                return cached.data;
+            }
+        }
+        JavaAflInstrument.InstrumentedClass instrumented =
+            JavaAflInstrument.instrument_class_uncached(
+                class_data, resource, options);
+        // System.out.println("bytes: " + class_data.length + " vs. " + instrumented.data.length);
+        if (key != null && instrumented.data != class_data) {
+            disk_cache.put(key, class_data, instrumented);
+        }
+        return instrumented.data;
     }
 
     @Override
     public Class<?> loadClass(String name) throws ClassNotFoundException
     {
-        if (name.startsWith("java.")) {
+        // javafl.* classes need to be shared with this class, as
+        // there can be only one copy of the JNI library and the map.
+        // Platform classes can't be instrumented, as the probes
+        // would run before javafl.JavaAfl is initialized.
+        if (name.startsWith("java.")
+            || name.startsWith("javax.")
+            || name.startsWith("jdk.")
+            || name.startsWith("sun.")
+            || name.startsWith("com.sun.")
+            || name.startsWith("javafl.")) {
             return super.loadClass(name);
         }
 
-        if (_cache.containsKey(name)) {
-            Class<?> cached_class = _cache.get(name);
-            // This likely means that there are other classes that
-            // result in security exceptions that java.* package
-            // related.
-            if (cached_class == null) {
-                return super.loadClass(name);
-            }
+        Class<?> cached_class = _cache.get(name);
+        if (cached_class != null) {
             return cached_class;
         }
-        String resource = name.replace(".", "/") + ".class";
-        InputStream stream = getResourceAsStream(resource);
-        if (stream == null) {
-            throw new ClassNotFoundException("Could not load class " + name);
+        synchronized (getClassLoadingLock(name)) {
+            // Another thread may have defined this class while we
+            // were waiting for the lock.
+            cached_class = _cache.get(name);
+            if (cached_class != null) {
+                return cached_class;
+            }
+            String resource = name.replace(".", "/") + ".class";
+            InputStream stream = getResourceAsStream(resource);
+            if (stream == null) {
+                throw new ClassNotFoundException("Could not load class " + name);
+            }
+            ByteArrayOutputStream class_buffer = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            try {
+                int read = stream.read(buffer, 0, buffer.length);
+                while (read > 0) {
+                    class_buffer.write(buffer, 0, read);
+                    read = stream.read(buffer, 0, buffer.length);
+                }
+            } catch (java.io.IOException e) {
+                // System.out.println("foo " + e);
+                return super.loadClass(name);
+            }
+            byte[] class_data = instrument_loaded_class(
+                class_buffer.toByteArray(), resource, _options, _disk_cache);
+            try {
+                Class<?> result = defineClass(name, class_data, 0, class_data.length);
+                _cache.put(name, result);
+                return result;
+            } catch (java.lang.SecurityException e) {
+                return super.loadClass(name);
+            }
         }
-        ByteArrayOutputStream class_buffer = new ByteArrayOutputStream();
-        byte[] buffer = new byte[4096];
-        try {
-            int read = stream.read(buffer, 0, buffer.length);
-            while (read > 0) {
-                class_buffer.write(buffer, 0, read);
-                read = stream.read(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Returns JAVA_AFL_CACHE_DIR or a directory under the user's
+     * cache directory. An empty JAVA_AFL_CACHE_DIR disables caching.
+     */
+    static JavaAflCache disk_cache()
+    {
+        String directory = System.getenv("JAVA_AFL_CACHE_DIR");
+        if (directory != null) {
+            if (directory.isEmpty()) {
+                return null;
             }
-        } catch (java.io.IOException e) {
-            // System.out.println("foo " + e);
-            return super.loadClass(name);
+            return new JavaAflCache(new File(directory));
         }
-        byte[] class_data = class_buffer.toByteArray();
-        JavaAflInstrument.InstrumentedClass instrumented = JavaAflInstrument.try_instrument_class(
-            class_data, resource, _options);
-        // System.out.println("bytes: " + class_data.length + " vs. " + instrumented.data.length);
-        try {
-            Class<?> result = defineClass(name, instrumented.data, 0, instrumented.data.length);
-            _cache.put(name, result);
-            return result;
-        } catch (java.lang.SecurityException e) {
-            return super.loadClass(name);
+        String cache_home = System.getenv("XDG_CACHE_HOME");
+        if (cache_home == null) {
+            cache_home = new File(
+                System.getProperty("user.home"), ".cache").getPath();
         }
+        return new JavaAflCache(
+            new File(new File(cache_home, "java-afl"), "classes"));
     }
 
     private static int usage()
     {
         System.err.println(
-            "Usage: java-afl-run [--custom-init] main.Class [args-to-main.Class]...");
+            "Usage: java-afl-run [--custom-init]|[--include rules]|[--exclude rules]|[--skip-synthetic]|[--skip-clinit]|[--stable-ids]|[--cmplog]|[--split-compares] main.Class [args-to-main.Class]...");
         return 1;
     }
 
@@ -103,10 +184,31 @@ public class run extends ClassLoader
                 100, false, true);
 
         int arg_index = 0;
-        String argument = args[arg_index];
-        if (argument.equals("--custom-init")) {
-            options.has_custom_init = true;
+        while (arg_index < args.length && args[arg_index].startsWith("--")) {
+            String argument = args[arg_index];
             arg_index++;
+            if (argument.equals("--custom-init")) {
+                options.has_custom_init = true;
+            } else if (argument.equals("--skip-synthetic")) {
+                options.filter.skip_synthetic = true;
+            } else if (argument.equals("--skip-clinit")) {
+                options.filter.skip_clinit = true;
+            } else if (argument.equals("--stable-ids")) {
+                options.probe_ids = new JavaAflProbeIds(
+                    javafl.JavaAfl.map.length);
+            } else if (argument.equals("--cmplog")) {
+                options.cmplog = true;
+            } else if (argument.equals("--split-compares")) {
+                options.split_compares = true;
+            } else if (argument.equals("--include") && arg_index < args.length) {
+                options.filter.include(args[arg_index]);
+                arg_index++;
+            } else if (argument.equals("--exclude") && arg_index < args.length) {
+                options.filter.exclude(args[arg_index]);
+                arg_index++;
+            } else {
+                System.exit(usage());
+            }
         }
 
         String ratio_str = System.getenv("AFL_INST_RATIO");
@@ -127,7 +229,7 @@ public class run extends ClassLoader
         }
         int map_size = javafl.JavaAfl.map.length;
         ClassLoader my_loader = run.class.getClassLoader();
-        ClassLoader loader = new run(my_loader, options);
+        ClassLoader loader = new run(my_loader, options, disk_cache());
         Class<?> clazz = null;
         String class_name = args[arg_index];
         try {
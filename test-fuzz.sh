@@ -43,7 +43,7 @@ function check_fuzz_status()
     fi
 }
 
-for mode in Forking Deferred Persistent; do
+for mode in Forking Deferred Persistent Callback; do
     rm -rf out/fuzz-"$mode"
     timeout --preserve-status -s INT "$test_timeout" \
             ./java-afl-fuzz -t "$testcase_timeout" -m 30000 -i in/ -o out/fuzz-"$mode" \
@@ -51,7 +51,7 @@ for mode in Forking Deferred Persistent; do
     check_fuzz_status "$mode"
 
     # TODO persistent dynamic instrumentation is not 100% stable.
-    if [[ "$mode" == Persistent ]]; then
+    if [[ "$mode" == Persistent || "$mode" == Callback ]]; then
         continue
     fi
     timeout --preserve-status -s INT "$test_timeout" \
@@ -60,6 +60,19 @@ for mode in Forking Deferred Persistent; do
     check_fuzz_status "$mode"
 done
 
+rm -rf out/fuzz-NoFork
+JAVA_AFL_NO_FORK=1 timeout --preserve-status -s INT "$test_timeout" \
+        ./java-afl-fuzz -t "$testcase_timeout" -m 30000 -i in/ -o out/fuzz-NoFork \
+        -- java -cp out/ins test.Persistent
+check_fuzz_status NoFork
+
+rm -rf out/fuzz-Warmup
+JAVA_AFL_WARMUP=1 JAVA_AFL_WARMUP_CORPUS=in/ JAVA_AFL_WARMUP_RUNS=10 \
+        timeout --preserve-status -s INT "$test_timeout" \
+        ./java-afl-fuzz -t "$testcase_timeout" -m 30000 -i in/ -o out/fuzz-Warmup \
+        -- java -cp java-afl-run.jar:out javafl.run test.Forking
+check_fuzz_status Warmup
+
 rm -rf out/fuzz-Null
 timeout --preserve-status -s INT "$test_timeout" \
         ./java-afl-fuzz -t "$testcase_timeout" -m 30000 -i in/ -o out/fuzz-Null \
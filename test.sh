@@ -42,6 +42,30 @@ if ! cmp out/deterministic/1/test/Utils.class out/deterministic/2/test/Utils.cla
     exit 1
 fi
 
+# Parallel instrumentation should not change the results:
+java -jar java-afl-instrument.jar \
+     --deterministic --jobs 4 \
+     out/deterministic/parallel \
+     out/test/Utils.class \
+     out/test/Forking.class
+if ! cmp out/deterministic/1/test/Utils.class out/deterministic/parallel/test/Utils.class; then
+    echo >&2 "Parallel instrumentation should produce identical files!"
+    exit 1
+fi
+
+# Cached results should be identical to freshly instrumented ones:
+rm -rf out/cache
+for run in 1 2; do
+    java -jar java-afl-instrument.jar \
+         --deterministic --cache out/cache \
+         out/deterministic/cached-"$run" \
+         out/test/Utils.class
+    if ! cmp out/deterministic/1/test/Utils.class out/deterministic/cached-"$run"/test/Utils.class; then
+        echo >&2 "Cached instrumentation should produce identical files!"
+        exit 1
+    fi
+done
+
 # Test that jarfile instrumentation works without issues.
 ./java-afl-showmap -m 30000 -o out/tuples-forking.txt -- java -jar out/ins/test.jar < in/a.txt
 tuples_forking=$(wc -l < out/tuples-forking.txt)
@@ -71,9 +95,365 @@ if [[ "$tuples_persistent" -lt 6 ]]; then
     exit 1
 fi
 
+# Executions are counted in the statistics file:
+rm -f out/stats.bin
+JAVA_AFL_STATS=out/stats.bin ./java-afl-showmap -m 30000 -o /dev/null -- \
+    java -cp out/ins test.Persistent < in/a.txt
+if ! java -cp java-afl-instrument.jar javafl.Telemetry out/stats.bin | grep -q '^executions 1$'; then
+    echo >&2 "Statistics file should have one execution!"
+    exit 1
+fi
+
+# The JNI library is extracted once, and a changed one is replaced:
+rm -rf out/library
+JAVA_AFL_LIBRARY_DIR=out/library java -cp out/ins test.Forking < in/a.txt > /dev/null
+library=(out/library/libjava-afl-*.so)
+echo garbage >> "${library[0]}"
+JAVA_AFL_LIBRARY_DIR=out/library java -cp out/ins test.Forking < in/a.txt > /dev/null
+if grep -q garbage "${library[0]}"; then
+    echo >&2 "A changed JNI library should not be loaded!"
+    exit 1
+fi
+
+# Callback harnesses get the same input as loops that read it:
+for callback in array buffer; do
+    ./java-afl-showmap -m 30000 -o out/tuples-callback-"$callback".txt -- \
+        java -cp out/ins test.Callback "$callback" < in/a.txt
+    tuples_callback=$(wc -l < out/tuples-callback-"$callback".txt)
+    if [[ "$tuples_callback" -lt 6 ]]; then
+        echo >&2 "Failed to generate enough tuples in $callback callback implementation!"
+        exit 1
+    fi
+done
+
 ./java-afl-showmap -m 30000 -o /dev/null -- \
     java -cp out/ins test.NoAttribute < in/a.txt
 
+# The same classes work with a smaller map, as probes mask their
+# tuple indexes with the map size that is decided at run time:
+JAVA_AFL_MAP_SIZE=256 ./java-afl-showmap -m 30000 -o out/tuples-small-map.txt -- \
+    java -cp out/ins test.Forking < in/a.txt
+tuples_small_map=$(wc -l < out/tuples-small-map.txt)
+if [[ "$tuples_small_map" -lt 6 ]]; then
+    echo >&2 "Failed to generate enough tuples with a smaller map!"
+    exit 1
+fi
+if awk -F: '$1 + 0 >= 256 { outside = 1 } END { exit !outside }' out/tuples-small-map.txt; then
+    echo >&2 "Tuples should stay inside the smaller map!"
+    exit 1
+fi
+
+# Instrumenting into the same directory again adds to the recorded
+# locations, so the map stays large enough for the classes of both
+# runs:
+rm -rf out/twice out/stats-twice.bin
+locations_first=$(
+    java -jar java-afl-instrument.jar out/twice \
+         out/test/Utils.class out/test/Forking.class out/test/Persistent.class \
+        | sed -n 's/.* with \([0-9]*\) locations.*/\1/p')
+java -jar java-afl-instrument.jar --custom-init out/twice out/test/NoAttribute.class
+JAVA_AFL_STATS=out/stats-twice.bin java -cp out/twice test.Forking < in/a.txt > /dev/null
+map_size_twice=$(java -cp java-afl-instrument.jar javafl.Telemetry out/stats-twice.bin \
+    | sed -n 's/^map_size //p')
+if [[ "$map_size_twice" -lt $((locations_first * 16)) ]]; then
+    echo >&2 "Map should be large enough for the classes of both instrumentation runs!"
+    exit 1
+fi
+
+# Inputs a and d only take different paths in code that is left
+# without probes:
+java -jar java-afl-instrument.jar --exclude test.Utils \
+     out/filtered \
+     out/test/Utils.class \
+     out/test/Forking.class
+for input in a d; do
+    ./java-afl-showmap -m 30000 -o out/tuples-filtered-"$input".txt -- \
+        java -cp out/filtered test.Forking < in/"$input".txt
+    ./java-afl-showmap -m 30000 -o out/tuples-unfiltered-"$input".txt -- \
+        java -cp out/ins test.Forking < in/"$input".txt
+    ./java-afl-showmap -m 30000 -o out/tuples-annotated-"$input".txt -- \
+        java -cp out/ins test.Filtered < in/"$input".txt
+    ./java-afl-showmap -m 30000 -o out/tuples-unannotated-"$input".txt -- \
+        java -cp out/ins test.Filtered instrumented < in/"$input".txt
+done
+if ! cmp out/tuples-filtered-a.txt out/tuples-filtered-d.txt; then
+    echo >&2 "Excluded classes should not produce tuples!"
+    exit 1
+fi
+if ! cmp out/tuples-annotated-a.txt out/tuples-annotated-d.txt; then
+    echo >&2 "Methods annotated with javafl.NoInstrument should not produce tuples!"
+    exit 1
+fi
+# The same code with probes tells these inputs apart:
+if cmp -s out/tuples-unfiltered-a.txt out/tuples-unfiltered-d.txt; then
+    echo >&2 "Classes that are not excluded should produce tuples!"
+    exit 1
+fi
+if cmp -s out/tuples-unannotated-a.txt out/tuples-unannotated-d.txt; then
+    echo >&2 "Methods without javafl.NoInstrument should produce tuples!"
+    exit 1
+fi
+
+# Keeping the previous location in method locals or per thread,
+# writing directly to the shared memory, tracking dirty map lines or
+# logging comparisons should not change the resulting tuples of a
+# single threaded program:
+for mode in static method-locals thread-aware direct-map dirty-tracking cmplog; do
+    flags=(--deterministic)
+    if [[ "$mode" != static ]]; then
+        flags+=(--"$mode")
+    fi
+    java -jar java-afl-instrument.jar \
+         "${flags[@]}" \
+         out/"$mode" \
+         out/test/Utils.class \
+         out/test/Forking.class \
+         out/test/Exceptions.class
+    ./java-afl-showmap -m 30000 -o out/tuples-"$mode".txt -- \
+        java -cp out/"$mode" test.Forking < in/a.txt
+    printf "aegkhqzxb" | ./java-afl-showmap -m 30000 -o out/tuples-exceptions-"$mode".txt -- \
+        java -cp out/"$mode" test.Exceptions
+done
+# Handlers of exceptions that instructions throw by themselves
+# continue from the block that threw:
+for mode in method-locals thread-aware; do
+    if ! cmp out/tuples-exceptions-static.txt out/tuples-exceptions-"$mode".txt; then
+        echo >&2 "Caught exceptions should produce identical tuples with $mode!"
+        exit 1
+    fi
+done
+if ! cmp out/tuples-static.txt out/tuples-method-locals.txt; then
+    echo >&2 "Method locals should produce identical tuples!"
+    exit 1
+fi
+if ! cmp out/tuples-static.txt out/tuples-thread-aware.txt; then
+    echo >&2 "Thread aware mode should produce identical tuples!"
+    exit 1
+fi
+if ! cmp out/tuples-static.txt out/tuples-direct-map.txt; then
+    echo >&2 "Direct map should produce identical tuples!"
+    exit 1
+fi
+if ! cmp out/tuples-static.txt out/tuples-dirty-tracking.txt; then
+    echo >&2 "Dirty tracking should produce identical tuples!"
+    exit 1
+fi
+if ! cmp out/tuples-static.txt out/tuples-cmplog.txt; then
+    echo >&2 "Comparison logging should produce identical tuples!"
+    exit 1
+fi
+
+# Classes without --dirty-tracking don't mark the map lines that they
+# write to, so their edges should not get lost next to classes that
+# do:
+java -jar java-afl-instrument.jar \
+     --deterministic --dirty-tracking out/mixed-dirty out/test/Forking.class
+java -jar java-afl-instrument.jar \
+     --deterministic out/mixed-static out/test/Utils.class
+./java-afl-showmap -m 30000 -o out/tuples-mixed-dirty.txt -- \
+    java -cp out/mixed-dirty:out/mixed-static test.Forking < in/a.txt
+if ! cmp out/tuples-static.txt out/tuples-mixed-dirty.txt; then
+    echo >&2 "Classes without dirty tracking should produce identical tuples next to ones with it!"
+    exit 1
+fi
+
+# Pool threads of a multi-threaded program should produce the same
+# tuples on each run, and their edges should still reach the map:
+java -jar java-afl-instrument.jar \
+     --deterministic --thread-aware out/threads out/test/Threads.class
+for run in 1 2 3 4 5; do
+    printf "ab1;cd2.ef3,gh" | ./java-afl-showmap -m 30000 -o out/tuples-threads-"$run".txt -- \
+        java -cp out/threads test.Threads
+    if ! cmp out/tuples-threads-1.txt out/tuples-threads-"$run".txt; then
+        echo >&2 "Threads should produce stable tuples in thread aware mode!"
+        exit 1
+    fi
+done
+printf "abcdefgh" | ./java-afl-showmap -m 30000 -o out/tuples-threads-letters.txt -- \
+    java -cp out/threads test.Threads
+if cmp out/tuples-threads-1.txt out/tuples-threads-letters.txt; then
+    echo >&2 "Edges of pool threads should reach the map in thread aware mode!"
+    exit 1
+fi
+
+# Split comparisons give a new tuple for each matching byte of a magic
+# value, where whole comparisons only see a difference for a full match:
+for mode in static split-compares; do
+    flags=(--deterministic)
+    if [[ "$mode" != static ]]; then
+        flags+=(--"$mode")
+    fi
+    java -jar java-afl-instrument.jar \
+         "${flags[@]}" \
+         out/magic-"$mode" \
+         out/test/Magic.class
+    for input in none partial full; do
+        case "$input" in
+            none) data=XXXXXXXX ;;
+            partial) data=JAXXXXXX ;;
+            full) data=JAVA-AFL ;;
+        esac
+        printf "%s" "$data" | ./java-afl-showmap -m 30000 -o out/tuples-magic-"$mode"-"$input".txt -- \
+            java -cp out/magic-"$mode" test.Magic
+    done
+done
+if ! cmp out/tuples-magic-static-none.txt out/tuples-magic-static-partial.txt; then
+    echo >&2 "Partial matches should not produce new tuples without splitting!"
+    exit 1
+fi
+if cmp out/tuples-magic-split-compares-none.txt out/tuples-magic-split-compares-partial.txt; then
+    echo >&2 "Split comparisons should produce new tuples for partial matches!"
+    exit 1
+fi
+split_output=$(printf "JAVA-AFL" | java -cp out/magic-split-compares test.Magic)
+if [[ "$split_output" != "$(printf "int\nlong\nswitch\nstring")" ]]; then
+    echo >&2 "Split comparisons should not change results: $split_output"
+    exit 1
+fi
+
+# Nested classes are not given to the instrumenter, so it can not
+# compute new frames for the class that uses them:
+java -jar java-afl-instrument.jar \
+     --split-compares \
+     out/supertypes \
+     out/test/Supertypes.class
+for input in J R; do
+    printf "%s" "$input" | ./java-afl-showmap -m 30000 -o out/tuples-supertypes-"$input".txt -- \
+        java -cp out/supertypes:out test.Supertypes
+done
+if cmp out/tuples-supertypes-J.txt out/tuples-supertypes-R.txt; then
+    echo >&2 "Classes with unknown super classes should be instrumented without splitting!"
+    exit 1
+fi
+
+# The report lists each method with the probes that it got:
+rm -rf out/report
+java -jar java-afl-instrument.jar --report out/report.csv \
+     out/report \
+     out/test/Utils.class \
+     out/test/Forking.class
+if ! grep -q '^out/test/Utils.class,test/Utils,fuzz_one(\[BILjava/util/HashMap;)V,instrumented,' out/report.csv; then
+    echo >&2 "Report should list instrumented methods!"
+    exit 1
+fi
+if ! awk -F, 'NR > 1 && $3 == "" && $4 != "total" { classes += $10 } NR > 1 && $3 != "" { methods += $10 }
+              END { exit !(classes > 0 && classes == methods) }' out/report.csv; then
+    echo >&2 "Probes of methods in the report should add up to their classes!"
+    exit 1
+fi
+# The estimates are for the map that the recorded locations give,
+# not for the default one:
+if ! awk -F, '$4 == "total" && $15 >= $10 * 16 && $15 < 65536 && $16 > 0 { found = 1 }
+              END { exit !found }' out/report.csv; then
+    echo >&2 "Report totals should estimate the recorded map size!"
+    exit 1
+fi
+
+# Methods close to the size limit get compact probes, and only an
+# evenly spread part of them if even those don't fit:
+java -jar java-afl-instrument.jar --report out/large-methods.csv \
+     out/large-methods \
+     out/test/LargeMethods.class
+if ! awk -F, '$3 == "compact(I)I" && $11 == "true" && $10 == $9 { found = 1 }
+              END { exit !found }' out/large-methods.csv; then
+    echo >&2 "A large method should get all probes as compact probes!"
+    exit 1
+fi
+if ! awk -F, '$3 == "spread(I)I" && $11 == "true" && $10 > 0 && $10 < $9 { found = 1 }
+              END { exit !found }' out/large-methods.csv; then
+    echo >&2 "A method close to the size limit should get a part of its probes!"
+    exit 1
+fi
+if ! awk -F, '$3 == "" && $6 == 100 { requested = 1 }
+              $3 == "compact(I)I" && $7 == 100 { compact = 1 }
+              $3 == "spread(I)I" && $7 > 0 && $7 < 100 { spread = 1 }
+              END { exit !(requested && compact && spread) }' out/large-methods.csv; then
+    echo >&2 "Methods with a part of their probes should have a lower effective ratio!"
+    exit 1
+fi
+large_output=$(java -cp out/large-methods test.LargeMethods < in/a.txt)
+if [[ "$large_output" != "$(java -cp out test.LargeMethods < in/a.txt)" ]]; then
+    echo >&2 "Large methods should work the same after instrumentation: $large_output"
+    exit 1
+fi
+
+# Stable probe locations don't depend on random numbers:
+for run in 1 2; do
+    java -jar java-afl-instrument.jar --stable-ids \
+         out/stable-"$run" \
+         out/test/Utils.class \
+         out/test/Forking.class
+done
+if ! cmp out/stable-1/test/Utils.class out/stable-2/test/Utils.class; then
+    echo >&2 "Stable probe locations should produce identical files!"
+    exit 1
+fi
+
+# Changing one method should not move the probes of the others. The
+# input only goes through the methods that stay the same. Random
+# locations that are seeded by the class file move when anything in
+# the class changes:
+for variant in test changed; do
+    class_dir=out
+    if [[ "$variant" == changed ]]; then
+        class_dir=out/changed
+    fi
+    for ids in stable-ids deterministic; do
+        java -jar java-afl-instrument.jar --"$ids" \
+             out/"$ids"-"$variant" "$class_dir"/test/StableIds.class
+        printf "ab1;cd" | ./java-afl-showmap -m 30000 -o out/tuples-"$ids"-"$variant".txt -- \
+            java -cp out/"$ids"-"$variant" test.StableIds
+    done
+done
+if ! cmp out/tuples-stable-ids-test.txt out/tuples-stable-ids-changed.txt; then
+    echo >&2 "Stable probe locations of unchanged methods should not move!"
+    exit 1
+fi
+if cmp -s out/tuples-deterministic-test.txt out/tuples-deterministic-changed.txt; then
+    echo >&2 "Changing a method should move deterministic probe locations!"
+    exit 1
+fi
+
+# Classes that javafl.run loads from its cache should give the same
+# tuples as freshly instrumented ones:
+rm -rf out/run-cache
+for run in uncached 1 2; do
+    cache_dir=out/run-cache
+    if [[ "$run" == uncached ]]; then
+        cache_dir=
+    fi
+    JAVA_AFL_CACHE_DIR="$cache_dir" ./java-afl-showmap -m 30000 -o out/tuples-run-"$run".txt -- \
+        java -cp java-afl-run.jar:out javafl.run test.Forking < in/a.txt
+done
+for run in 1 2; do
+    if ! cmp out/tuples-run-uncached.txt out/tuples-run-"$run".txt; then
+        echo >&2 "Cached javafl.run classes should produce identical tuples!"
+        exit 1
+    fi
+done
+
+# Cache entries with colliding keys must not load some other class:
+first_entry=$(find out/run-cache -name "*.class" | sort | head -n 1)
+find out/run-cache -name "*.class" | while read -r entry; do
+    if [[ "$entry" != "$first_entry" ]]; then
+        cp "$first_entry" "$entry"
+    fi
+done
+./java-afl-showmap -m 30000 -o out/tuples-run-collided.txt -- \
+    java -cp java-afl-run.jar:out javafl.run test.Forking < in/a.txt
+if ! cmp out/tuples-run-uncached.txt out/tuples-run-collided.txt; then
+    echo >&2 "Cache entries of other classes should be ignored!"
+    exit 1
+fi
+
+# The agent instruments the same classes as javafl.run does:
+./java-afl-showmap -m 30000 -o out/tuples-agent.txt -- \
+    java -javaagent:java-afl-run.jar -cp out test.Forking < in/a.txt
+if ! cmp out/tuples-run-uncached.txt out/tuples-agent.txt; then
+    echo >&2 "Agent should produce identical tuples with javafl.run!"
+    exit 1
+fi
+
 rm -rf out/min/
 ./java-afl-cmin -m 30000 -i in/ -o out/min/ -- java -jar out/ins/test.jar
 files_in=$(find in/ -type f | wc -l)
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import java.util.HashMap;
+
+public class Callback
+{
+    @javafl.CustomInit
+    public static void main(String[] args)
+    {
+        HashMap<Byte, Integer> values = new HashMap<Byte, Integer>();
+        for (int i = 0; i < 'z' - 'a'; ++i) {
+            byte key = (byte)('a' + i);
+            values.put(key, i);
+        }
+        if (args.length >= 1 && args[0].equals("buffer")) {
+            byte[] data = new byte[128];
+            javafl.fuzz.run(100000, (java.nio.ByteBuffer input) -> {
+                int read = Math.min(input.remaining(), data.length);
+                input.get(data, 0, read);
+                test.Utils.fuzz_one(data, read, values);
+            });
+            return;
+        }
+        javafl.fuzz.run(100000, (byte[] data, int length) -> {
+            test.Utils.fuzz_one(data, length, values);
+        });
+    }
+}
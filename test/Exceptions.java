@@ -0,0 +1,45 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+// Catches exceptions that instructions throw without a method call,
+// so the handler continues from the block that threw them.
+public class Exceptions
+{
+    public static void main(String[] args) throws java.io.IOException
+    {
+        byte[] data = new byte[128];
+        int read = System.in.read(data, 0, data.length);
+        int[] counts = new int[4];
+        int caught = 0;
+        for (int i = 0; i < read; i++) {
+            try {
+                if (data[i] < 'h') {
+                    counts[data[i] - 'a']++;
+                } else if (data[i] < 'p') {
+                    caught += 100 / (data[i] - 'h');
+                } else {
+                    Object value = data[i] < 't' ? (Object)"text" : (Object)Integer.valueOf(i);
+                    caught += ((String)value).length();
+                }
+            } catch (RuntimeException e) {
+                caught++;
+            }
+        }
+        System.out.println(caught);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+public class Filtered
+{
+    // Different inputs take different branches here, but that
+    // should not be visible in the coverage.
+    @javafl.NoInstrument
+    static int classify(byte[] data, int size)
+    {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            if (data[i] % 5 == 0) {
+                total += 5;
+            } else if (data[i] % 3 == 0) {
+                total += 3;
+            } else {
+                total += 1;
+            }
+        }
+        return total;
+    }
+
+    // Same as classify(), but with probes.
+    static int classify_instrumented(byte[] data, int size)
+    {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            if (data[i] % 5 == 0) {
+                total += 5;
+            } else if (data[i] % 3 == 0) {
+                total += 3;
+            } else {
+                total += 1;
+            }
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws java.io.IOException
+    {
+        byte[] data = new byte[128];
+        int read = System.in.read(data, 0, data.length);
+        if (args.length > 0 && args[0].equals("instrumented")) {
+            System.out.println(classify_instrumented(data, read));
+        } else {
+            System.out.println(classify(data, read));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+public class Magic
+{
+    public static void main(String[] args) throws java.io.IOException
+    {
+        byte[] data = new byte[8];
+        int read = System.in.read(data, 0, data.length);
+        if (read < data.length) {
+            return;
+        }
+        int word = 0;
+        long quad = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (i < 4) {
+                word = (word << 8) | (data[i] & 0xff);
+            }
+            quad = (quad << 8) | (data[i] & 0xff);
+        }
+        if (word == 0x4a415641) {
+            System.out.println("int");
+        }
+        if (quad == 0x4a4156412d41464cL) {
+            System.out.println("long");
+        }
+        switch (word) {
+        case 0x4a415641:
+            System.out.println("switch");
+            break;
+        case 0x2d41464c:
+            System.out.println("other");
+            break;
+        default:
+            break;
+        }
+        if (new String(data, "US-ASCII").equals("JAVA-AFL")) {
+            System.out.println("string");
+        }
+    }
+}
@@ -30,18 +30,15 @@ public class Persistent
         }
         byte[] data = new byte[128];
         int read = 128;
-        while (javafl.fuzz.loop(100000)) {
-            if (args.length >= 1) {
+        if (args.length >= 1) {
+            while (javafl.fuzz.loop(100000)) {
                 read = (new java.io.FileInputStream(args[0])).read(data, 0, data.length);
-            } else {
-                read = System.in.read(data, 0, data.length);
-                // Throw away all buffering information from stdin:
-                try {
-                    System.in.skip(9999999);
-                } catch (java.io.IOException e) {
-                    // pass
-                }
+                test.Utils.fuzz_one(data, read, values);
             }
+            return;
+        }
+        while (javafl.fuzz.input_loop(100000)) {
+            read = javafl.fuzz.input(data);
             test.Utils.fuzz_one(data, read, values);
         }
     }
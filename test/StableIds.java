@@ -0,0 +1,54 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+// build.sh also compiles a copy of this class where changed() has
+// more branches. The probes of the other methods should keep their
+// locations with --stable-ids.
+public class StableIds
+{
+    static int parse(byte[] data, int size)
+    {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            if (data[i] >= 'a' && data[i] <= 'z') {
+                total += data[i] - 'a';
+            } else if (data[i] >= '0' && data[i] <= '9') {
+                total *= data[i] - '0' + 1;
+            } else {
+                total ^= data[i];
+            }
+        }
+        return total;
+    }
+
+    static int changed(int value)
+    {
+        return value + 1;
+    }
+
+    public static void main(String[] args) throws java.io.IOException
+    {
+        byte[] data = new byte[128];
+        int read = System.in.read(data, 0, data.length);
+        if (args.length > 0) {
+            System.out.println(changed(read));
+        } else {
+            System.out.println(parse(data, read));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+public class Supertypes
+{
+    static class Base
+    {
+        String name()
+        {
+            return "base";
+        }
+    }
+
+    static class Left extends Base
+    {
+        String name()
+        {
+            return "left";
+        }
+    }
+
+    static class Right extends Base
+    {
+        String name()
+        {
+            return "right";
+        }
+    }
+
+    public static void main(String[] args) throws java.io.IOException
+    {
+        int value = System.in.read();
+        // Computing the frame after this needs the common super class
+        // of Left and Right.
+        Base chosen = value == 'L' ? new Left() : new Right();
+        if (value == 0x4a) {
+            System.out.println("magic");
+        }
+        System.out.println(chosen.name());
+    }
+}
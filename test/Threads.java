@@ -0,0 +1,61 @@
+/**
+ * Copyright 2018  Jussi Judin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Parses parts of the input in pool threads that run at the same time.
+public class Threads
+{
+    static final int THREADS = 4;
+
+    static int parse(byte[] data, int length, int offset)
+    {
+        int result = 0;
+        for (int i = offset; i < length; i += THREADS) {
+            if (data[i] >= 'a' && data[i] <= 'z') {
+                result += data[i] - 'a';
+            } else if (data[i] >= '0' && data[i] <= '9') {
+                result *= data[i] - '0' + 1;
+            } else {
+                result ^= data[i];
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final byte[] data = new byte[128];
+        final int length = System.in.read(data, 0, data.length);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final int offset = thread;
+            results.add(pool.submit(() -> parse(data, length, offset)));
+        }
+        int result = 0;
+        for (Future<Integer> future : results) {
+            result += future.get();
+        }
+        pool.shutdown();
+        System.out.println(result);
+    }
+}
@@ -0,0 +1,48 @@
+#!/bin/bash
+#
+# Copyright 2018  Jussi Judin
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Writes test.LargeMethods with methods that only fit in the 64
+# kilobyte method size limit with compact probes (about 20 kB of
+# branches) or with only some of the compact probes (about 55 kB).
+
+set -euo pipefail
+
+method() {
+    local name=$1
+    local branches=$2
+    echo "    static int $name(int x)"
+    echo "    {"
+    echo "        int result = 0;"
+    for ((i = 0; i < branches; i++)); do
+        echo "        if (x > $i) { result += $i; } else { result -= 1; }"
+    done
+    echo "        return result;"
+    echo "    }"
+}
+
+echo "package test;"
+echo
+echo "public class LargeMethods"
+echo "{"
+method compact 1200
+method spread 3000
+echo "    public static void main(String[] args) throws java.io.IOException"
+echo "    {"
+echo "        byte[] data = new byte[128];"
+echo "        int read = System.in.read(data, 0, data.length);"
+echo "        System.out.println(compact(data[0]) + spread(read));"
+echo "    }"
+echo "}"